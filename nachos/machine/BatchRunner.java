@@ -0,0 +1,406 @@
+// PART OF THE MACHINE SIMULATION. DO NOT CHANGE.
+
+package nachos.machine;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.util.ArrayList;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Runs many independent Nachos machines in one JVM, so that a list of test
+ * cases does not pay for JVM startup once per case.
+ *
+ * <p>
+ * Usage: <tt>java nachos.machine.BatchRunner [-j <i>threads</i>]
+ * <i>jobfile</i></tt>
+ *
+ * <p>
+ * Each line of the job file describes one machine: the directory a normal
+ * run would be started from, followed by the machine's command line
+ * arguments. Blank lines and lines starting with <tt>#</tt> are ignored. For
+ * example:
+ *
+ * <pre>
+ * proj1
+ * proj2 -x halt.coff
+ * proj3 -[] swap.conf -x matmult.coff
+ * </pre>
+ *
+ * <p>
+ * The machine, the kernel and most of their parts are kept in static fields.
+ * Rather than turning all of them into instance state, the runner loads a
+ * fresh copy of every class on the class path for each job, with a class
+ * loader of its own, so each job has its own statics. Within a job,
+ * <tt>Privilege.exit()</tt> stops the job's threads instead of exiting the
+ * JVM, relative paths are resolved against the job's directory,
+ * <tt>System.out</tt> and <tt>System.err</tt> are captured, and
+ * <tt>System.in</tt> is empty.
+ *
+ * <p>
+ * Jobs run concurrently on a pool of host threads (by default one per host
+ * processor). Each job's output is printed in job file order, along with its
+ * exit status and host time, and the runner exits with the number of jobs
+ * whose status was not zero.
+ */
+public final class BatchRunner {
+	/**
+	 * Batch runner entry point.
+	 *
+	 * @param args the command line arguments.
+	 */
+	public static void main(String[] args) {
+		int threads = Runtime.getRuntime().availableProcessors();
+		String jobFileName = null;
+
+		for (int i = 0; i < args.length;) {
+			String arg = args[i++];
+			if (arg.equals("-j")) {
+				Lib.assertTrue(i < args.length, "switch without argument");
+				try {
+					threads = Integer.parseInt(args[i++]);
+				}
+				catch (NumberFormatException e) {
+					Lib.assertNotReached("bad value for -j switch");
+				}
+				Lib.assertTrue(threads > 0, "bad value for -j switch");
+			}
+			else {
+				jobFileName = arg;
+			}
+		}
+
+		if (jobFileName == null) {
+			System.err.println("usage: java nachos.machine.BatchRunner "
+					+ "[-j threads] jobfile");
+			System.exit(1);
+		}
+
+		ArrayList<Job> jobs = readJobs(jobFileName);
+		URL[] classPath = getClassPath();
+
+		System.setOut(new PrintStream(new JobOutputStream(System.out), true));
+		System.setErr(new PrintStream(new JobOutputStream(System.err), true));
+		System.setIn(new JobInputStream(System.in));
+
+		long start = System.nanoTime();
+
+		ExecutorService pool = Executors.newFixedThreadPool(threads);
+		ArrayList<Future<Integer>> results = new ArrayList<Future<Integer>>();
+		for (Job job : jobs) {
+			job.classPath = classPath;
+			results.add(pool.submit(job));
+		}
+		pool.shutdown();
+
+		int failed = 0;
+		for (int i = 0; i < jobs.size(); i++) {
+			Job job = jobs.get(i);
+			int status;
+			try {
+				status = results.get(i).get();
+			}
+			catch (InterruptedException e) {
+				status = 1;
+			}
+			catch (ExecutionException e) {
+				e.getCause().printStackTrace(new PrintStream(job.output, true));
+				status = 1;
+			}
+
+			if (status != 0)
+				failed++;
+
+			System.out.println("==> job " + (i + 1) + ": " + job
+					+ " (status " + status + ", "
+					+ String.format("%.2f", job.time / 1e9) + "s)");
+			System.out.print(job.output.toString());
+			System.out.println();
+		}
+
+		System.out.println(jobs.size() + " jobs, " + failed + " failed, "
+				+ String.format("%.2f", (System.nanoTime() - start) / 1e9)
+				+ "s on " + threads + " threads");
+
+		System.exit(failed);
+	}
+
+	/**
+	 * Test whether this copy of Nachos is running as a batch job.
+	 *
+	 * @return <tt>true</tt> if Nachos was started by the batch runner.
+	 */
+	public static boolean isBatchJob() {
+		return jobDirectory != null;
+	}
+
+	/**
+	 * Stop this job's machine with the specified status, without exiting the
+	 * JVM. Called by the security manager in place of <tt>System.exit()</tt>,
+	 * and never returns.
+	 *
+	 * @param status the exit status of the machine.
+	 */
+	public static void exitJob(int status) {
+		Lib.assertTrue(isBatchJob());
+
+		synchronized (finished) {
+			if (finished.getCount() > 0) {
+				exitStatus = status;
+				TCB.stopAll();
+				finished.countDown();
+			}
+		}
+
+		throw new ThreadDeath();
+	}
+
+	/**
+	 * Return the directory this job runs in.
+	 *
+	 * @return the job's directory.
+	 */
+	static File getDirectory() {
+		return jobDirectory;
+	}
+
+	/**
+	 * Run a machine in this copy of Nachos, and wait for it to exit. Invoked
+	 * by reflection on the copy of this class loaded for the job.
+	 *
+	 * @param directory the directory the machine runs in.
+	 * @param args the machine's command line arguments.
+	 * @return the machine's exit status.
+	 */
+	private static int runJob(File directory, String[] args) {
+		jobDirectory = directory;
+
+		try {
+			Machine.main(args);
+		}
+		catch (ThreadDeath e) {
+		}
+		catch (Throwable e) {
+			// the machine failed before its first thread started
+			e.printStackTrace();
+			synchronized (finished) {
+				if (finished.getCount() > 0) {
+					exitStatus = 1;
+					finished.countDown();
+				}
+			}
+		}
+
+		// the first thread returns as soon as it finishes, which may be long
+		// before the machine exits
+		while (true) {
+			try {
+				finished.await();
+				return exitStatus;
+			}
+			catch (InterruptedException e) {
+			}
+		}
+	}
+
+	private static ArrayList<Job> readJobs(String jobFileName) {
+		ArrayList<Job> jobs = new ArrayList<Job>();
+		File base = new File(new File("").getAbsolutePath());
+
+		try (BufferedReader reader = new BufferedReader(new FileReader(
+				jobFileName))) {
+			String line;
+			while ((line = reader.readLine()) != null) {
+				line = line.trim();
+				if (line.length() == 0 || line.charAt(0) == '#')
+					continue;
+
+				String[] words = line.split("\\s+");
+				File directory = new File(words[0]);
+				if (!directory.isAbsolute())
+					directory = new File(base, words[0]);
+
+				String[] args = new String[words.length - 1];
+				System.arraycopy(words, 1, args, 0, args.length);
+
+				jobs.add(new Job(line, directory, args));
+			}
+		}
+		catch (IOException e) {
+			Lib.assertNotReached("could not read job file " + jobFileName
+					+ ": " + e);
+		}
+
+		return jobs;
+	}
+
+	private static URL[] getClassPath() {
+		String[] entries = System.getProperty("java.class.path").split(
+				File.pathSeparator);
+		URL[] urls = new URL[entries.length];
+
+		for (int i = 0; i < entries.length; i++) {
+			try {
+				urls[i] = new File(entries[i]).toURI().toURL();
+			}
+			catch (MalformedURLException e) {
+				Lib.assertNotReached("bad class path entry " + entries[i]);
+			}
+		}
+
+		return urls;
+	}
+
+	private static class Job implements Callable<Integer> {
+		Job(String description, File directory, String[] args) {
+			this.description = description;
+			this.directory = directory;
+			this.args = args;
+		}
+
+		public Integer call() throws Exception {
+			long start = System.nanoTime();
+			PrintStream out = new PrintStream(output, true);
+			jobOutput.set(out);
+
+			try {
+				ClassLoader loader = new JobClassLoader(classPath);
+				Method entry = loader.loadClass(BatchRunner.class.getName())
+						.getDeclaredMethod("runJob", File.class, String[].class);
+				entry.setAccessible(true);
+
+				return (Integer) entry.invoke(null, directory, args);
+			}
+			catch (InvocationTargetException e) {
+				e.getCause().printStackTrace(out);
+				return 1;
+			}
+			finally {
+				jobOutput.remove();
+				time = System.nanoTime() - start;
+			}
+		}
+
+		public String toString() {
+			return description;
+		}
+
+		private String description;
+
+		private File directory;
+
+		private String[] args;
+
+		URL[] classPath;
+
+		ByteArrayOutputStream output = new ByteArrayOutputStream();
+
+		long time;
+	}
+
+	/**
+	 * Loads every class it can find on the class path itself, rather than
+	 * asking its parent first, so that each job gets its own copy.
+	 */
+	private static class JobClassLoader extends URLClassLoader {
+		JobClassLoader(URL[] classPath) {
+			super(classPath, BatchRunner.class.getClassLoader());
+		}
+
+		protected Class<?> loadClass(String name, boolean resolve)
+				throws ClassNotFoundException {
+			synchronized (getClassLoadingLock(name)) {
+				Class<?> c = findLoadedClass(name);
+				if (c == null) {
+					try {
+						c = findClass(name);
+					}
+					catch (ClassNotFoundException e) {
+						return super.loadClass(name, resolve);
+					}
+				}
+
+				if (resolve)
+					resolveClass(c);
+				return c;
+			}
+		}
+	}
+
+	/**
+	 * Sends output to the current job's buffer, or to the real stream if the
+	 * current thread does not belong to a job. A job's threads inherit its
+	 * buffer from the thread that started the job.
+	 */
+	private static class JobOutputStream extends OutputStream {
+		JobOutputStream(OutputStream host) {
+			this.host = host;
+		}
+
+		public void write(int b) throws IOException {
+			target().write(b);
+		}
+
+		public void write(byte[] b, int off, int len) throws IOException {
+			target().write(b, off, len);
+		}
+
+		public void flush() throws IOException {
+			target().flush();
+		}
+
+		private OutputStream target() {
+			PrintStream out = jobOutput.get();
+			return (out != null) ? out : host;
+		}
+
+		private OutputStream host;
+	}
+
+	/**
+	 * Has nothing to read for threads that belong to a job.
+	 */
+	private static class JobInputStream extends InputStream {
+		JobInputStream(InputStream host) {
+			this.host = host;
+		}
+
+		public int read() throws IOException {
+			return (jobOutput.get() != null) ? -1 : host.read();
+		}
+
+		public int read(byte[] b, int off, int len) throws IOException {
+			return (jobOutput.get() != null) ? -1 : host.read(b, off, len);
+		}
+
+		public int available() throws IOException {
+			return (jobOutput.get() != null) ? 0 : host.available();
+		}
+
+		private InputStream host;
+	}
+
+	private static final InheritableThreadLocal<PrintStream> jobOutput = new InheritableThreadLocal<PrintStream>();
+
+	private static File jobDirectory = null;
+
+	private static int exitStatus;
+
+	private static final CountDownLatch finished = new CountDownLatch(1);
+}
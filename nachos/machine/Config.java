@@ -82,19 +82,27 @@ public final class Config {
 		}
 		catch (Throwable e) {
 			System.err.println("Error loading " + configFile);
-			System.exit(1);
+			exit();
 		}
 	}
 
+	private static void exit() {
+		// under the batch runner, fail only this machine
+		if (BatchRunner.isBatchJob())
+			BatchRunner.exitJob(1);
+
+		System.exit(1);
+	}
+
 	private static void loadError(int line) {
 		System.err.println("Error in " + configFile + " line " + line);
-		System.exit(1);
+		exit();
 	}
 
 	private static void configError(String message) {
 		System.err.println("");
 		System.err.println("Error in " + configFile + ": " + message);
-		System.exit(1);
+		exit();
 	}
 
 	/**
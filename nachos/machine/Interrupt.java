@@ -4,9 +4,8 @@ package nachos.machine;
 
 import nachos.security.*;
 
-import java.util.TreeSet;
-import java.util.Iterator;
-import java.util.SortedSet;
+import java.util.Arrays;
+import java.util.Comparator;
 
 /**
  * The <tt>Interrupt</tt> class emulates low-level interrupt hardware. The
@@ -52,7 +51,10 @@ public final class Interrupt {
 		privilege.interrupt = new InterruptPrivilege();
 
 		enabled = false;
-		pending = new TreeSet<PendingInterrupt>();
+		pendingTimes = new long[initialCapacity];
+		pendingIds = new long[initialCapacity];
+		pendingTypes = new String[initialCapacity];
+		pendingHandlers = new Runnable[initialCapacity];
 	}
 
 	/**
@@ -123,12 +125,64 @@ public final class Interrupt {
 		Lib.assertTrue(when > 0);
 
 		long time = privilege.stats.totalTicks + when;
-		PendingInterrupt toOccur = new PendingInterrupt(time, type, handler);
 
 		Lib.debug(dbgInt, "Scheduling the " + type
 				+ " interrupt handler at time = " + time);
 
-		pending.add(toOccur);
+		if (numPending == pendingTimes.length)
+			growPending();
+
+		// sift the new interrupt up from the first free slot
+		int i = numPending++;
+		long id = numPendingInterruptsCreated++;
+		while (i > 0) {
+			int parent = (i - 1) / 2;
+			if (!before(time, id, parent))
+				break;
+
+			moveSlot(parent, i);
+			i = parent;
+		}
+
+		setSlot(i, time, id, type, handler);
+	}
+
+	/**
+	 * Advance simulated time directly to the next pending interrupt, and
+	 * invoke the handlers that are then due. An idle kernel can call this
+	 * instead of spinning until something happens. Interrupts must be
+	 * disabled. The skipped time is counted in <tt>Stats.idleTicks</tt>.
+	 */
+	public void idle() {
+		Lib.assertTrue(disabled());
+
+		long time = nextInterruptTime();
+		Lib.assertTrue(time != Long.MAX_VALUE,
+				"idle with no pending interrupts");
+
+		Stats stats = privilege.stats;
+		if (time > stats.totalTicks) {
+			Lib.debug(dbgInt, "Idling until time = " + time);
+
+			stats.idleTicks += time - stats.totalTicks;
+			stats.totalTicks = time;
+		}
+
+		checkIfDue();
+	}
+
+	/**
+	 * Move every pending interrupt by the same number of ticks. Used when
+	 * simulated time is set back or forward by restoring a <tt>Snapshot</tt>.
+	 * 
+	 * @param delta the number of ticks to add to each interrupt's time.
+	 */
+	void shiftPending(long delta) {
+		Lib.assertTrue(disabled());
+
+		// adding a constant keeps the heap ordered
+		for (int i = 0; i < numPending; i++)
+			pendingTimes[i] += delta;
 	}
 
 	private void tick(boolean inKernelMode) {
@@ -151,6 +205,32 @@ public final class Interrupt {
 		enabled = true;
 	}
 
+	private long nextInterruptTime() {
+		if (numPending == 0)
+			return Long.MAX_VALUE;
+
+		return pendingTimes[0];
+	}
+
+	private void advanceUserTicks(long count) {
+		Lib.assertTrue(count >= 0);
+
+		// preserve the per-tick trace when debugging
+		if (Lib.test(dbgInt)) {
+			for (long i = 0; i < count; i++)
+				tick(false);
+			return;
+		}
+
+		Stats stats = privilege.stats;
+
+		Lib.assertTrue(stats.totalTicks + count * Stats.UserTick
+				< nextInterruptTime());
+
+		stats.userTicks += count * Stats.UserTick;
+		stats.totalTicks += count * Stats.UserTick;
+	}
+
 	private void checkIfDue() {
 		long time = privilege.stats.totalTicks;
 
@@ -159,27 +239,22 @@ public final class Interrupt {
 		if (Lib.test(dbgInt))
 			print();
 
-		if (pending.isEmpty())
-			return;
-
-		if (((PendingInterrupt) pending.first()).time > time)
+		if (numPending == 0 || pendingTimes[0] > time)
 			return;
 
 		Lib.debug(dbgInt, "Invoking interrupt handlers at time = " + time);
 
-		while (!pending.isEmpty()
-				&& ((PendingInterrupt) pending.first()).time <= time) {
-			PendingInterrupt next = (PendingInterrupt) pending.first();
-			pending.remove(next);
-
-			Lib.assertTrue(next.time <= time);
+		while (numPending > 0 && pendingTimes[0] <= time) {
+			String type = pendingTypes[0];
+			Runnable handler = pendingHandlers[0];
+			removeFirst();
 
 			if (privilege.processor != null)
 				privilege.processor.flushPipe();
 
-			Lib.debug(dbgInt, "  " + next.type);
+			Lib.debug(dbgInt, "  " + type);
 
-			next.handler.run();
+			handler.run();
 		}
 
 		Lib.debug(dbgInt, "  (end of list)");
@@ -190,46 +265,100 @@ public final class Interrupt {
 				+ ", interrupts " + (enabled ? "on" : "off"));
 		System.out.println("Pending interrupts:");
 
-		for (Iterator i = pending.iterator(); i.hasNext();) {
-			PendingInterrupt toOccur = (PendingInterrupt) i.next();
-			System.out.println("  " + toOccur.type + ", scheduled at "
-					+ toOccur.time);
-		}
+		// the heap is only partially ordered, so sort a copy of the slots
+		Integer[] order = new Integer[numPending];
+		for (int i = 0; i < numPending; i++)
+			order[i] = i;
+		Arrays.sort(order, new Comparator<Integer>() {
+			public int compare(Integer a, Integer b) {
+				if (pendingTimes[a] != pendingTimes[b])
+					return Long.compare(pendingTimes[a], pendingTimes[b]);
+				else
+					return Long.compare(pendingIds[a], pendingIds[b]);
+			}
+		});
+
+		for (int i = 0; i < numPending; i++)
+			System.out.println("  " + pendingTypes[order[i]]
+					+ ", scheduled at " + pendingTimes[order[i]]);
 
 		System.out.println("  (end of list)");
 	}
 
-	private class PendingInterrupt implements Comparable {
-		PendingInterrupt(long time, String type, Runnable handler) {
-			this.time = time;
-			this.type = type;
-			this.handler = handler;
-			this.id = numPendingInterruptsCreated++;
-		}
+	/**
+	 * Remove the earliest pending interrupt from the heap, refilling its slot
+	 * from the last one.
+	 */
+	private void removeFirst() {
+		int last = --numPending;
+		long time = pendingTimes[last];
+		long id = pendingIds[last];
+		String type = pendingTypes[last];
+		Runnable handler = pendingHandlers[last];
+		clearSlot(last);
+
+		if (last == 0)
+			return;
 
-		public int compareTo(Object o) {
-			PendingInterrupt toOccur = (PendingInterrupt) o;
-
-			// can't return 0 for unequal objects, so check all fields
-			if (time < toOccur.time)
-				return -1;
-			else if (time > toOccur.time)
-				return 1;
-			else if (id < toOccur.id)
-				return -1;
-			else if (id > toOccur.id)
-				return 1;
-			else
-				return 0;
+		// sift the former last interrupt down from the root
+		int i = 0;
+		while (true) {
+			int child = 2 * i + 1;
+			if (child >= last)
+				break;
+			if (child + 1 < last
+					&& before(pendingTimes[child + 1], pendingIds[child + 1],
+							child))
+				child++;
+			if (!before(pendingTimes[child], pendingIds[child], time, id))
+				break;
+
+			moveSlot(child, i);
+			i = child;
 		}
 
-		long time;
+		setSlot(i, time, id, type, handler);
+	}
+
+	/**
+	 * Test whether an interrupt at (<i>time</i>, <i>id</i>) is ordered before
+	 * the interrupt in the specified heap slot. Interrupts are ordered by time,
+	 * and then by the order in which they were scheduled.
+	 */
+	private boolean before(long time, long id, int slot) {
+		return before(time, id, pendingTimes[slot], pendingIds[slot]);
+	}
 
-		String type;
+	private static boolean before(long time1, long id1, long time2, long id2) {
+		return time1 < time2 || (time1 == time2 && id1 < id2);
+	}
 
-		Runnable handler;
+	private void setSlot(int slot, long time, long id, String type,
+			Runnable handler) {
+		pendingTimes[slot] = time;
+		pendingIds[slot] = id;
+		pendingTypes[slot] = type;
+		pendingHandlers[slot] = handler;
+	}
 
-		private long id;
+	private void moveSlot(int from, int to) {
+		setSlot(to, pendingTimes[from], pendingIds[from], pendingTypes[from],
+				pendingHandlers[from]);
+	}
+
+	private void clearSlot(int slot) {
+		// drop references so finished handlers can be collected
+		pendingTypes[slot] = null;
+		pendingHandlers[slot] = null;
+	}
+
+	private void growPending() {
+		int capacity = pendingTimes.length * 2;
+
+		pendingTimes = Arrays.copyOf(pendingTimes, capacity);
+		pendingIds = Arrays.copyOf(pendingIds, capacity);
+		pendingTypes = Arrays.copyOf(pendingTypes, capacity);
+		pendingHandlers = Arrays.copyOf(pendingHandlers, capacity);
 	}
 
 	private long numPendingInterruptsCreated = 0;
@@ -238,7 +367,22 @@ public final class Interrupt {
 
 	private boolean enabled;
 
-	private TreeSet<PendingInterrupt> pending;
+	/**
+	 * Pending interrupts, kept as a binary min-heap over parallel slot arrays
+	 * so that scheduling an interrupt does not allocate. The first
+	 * <tt>numPending</tt> slots are in use.
+	 */
+	private long[] pendingTimes;
+
+	private long[] pendingIds;
+
+	private String[] pendingTypes;
+
+	private Runnable[] pendingHandlers;
+
+	private int numPending = 0;
+
+	private static final int initialCapacity = 16;
 
 	private static final char dbgInt = 'i';
 
@@ -250,5 +394,13 @@ public final class Interrupt {
 		public void tick(boolean inKernelMode) {
 			Interrupt.this.tick(inKernelMode);
 		}
+
+		public long nextInterruptTime() {
+			return Interrupt.this.nextInterruptTime();
+		}
+
+		public void advanceUserTicks(long count) {
+			Interrupt.this.advanceUserTicks(count);
+		}
 	}
 }
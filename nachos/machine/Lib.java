@@ -465,14 +465,16 @@ public final class Lib {
 
 	/**
 	 * Load and return the named class, or return <tt>null</tt> if the class
-	 * could not be loaded.
+	 * could not be loaded. Classes are loaded by the same class loader as
+	 * Nachos itself, so that each machine run by <tt>BatchRunner</tt> gets
+	 * its own copy.
 	 * 
 	 * @param className the name of the class to load.
 	 * @return the loaded class, or <tt>null</tt> if an error occurred.
 	 */
 	public static Class tryLoadClass(String className) {
 		try {
-			return ClassLoader.getSystemClassLoader().loadClass(className);
+			return Lib.class.getClassLoader().loadClass(className);
 		}
 		catch (Throwable e) {
 			return null;
@@ -487,7 +489,7 @@ public final class Lib {
 	 */
 	public static Class loadClass(String className) {
 		try {
-			return ClassLoader.getSystemClassLoader().loadClass(className);
+			return Lib.class.getClassLoader().loadClass(className);
 		}
 		catch (Throwable e) {
 			Machine.terminate(e);
@@ -35,12 +35,17 @@ public final class Machine {
 		Lib.assertTrue(Machine.args == null);
 		Machine.args = args;
 
+		// get the current directory (.), which is the job's directory when
+		// running under the batch runner
+		if (BatchRunner.isBatchJob())
+			baseDirectory = BatchRunner.getDirectory();
+		else
+			baseDirectory = new File(new File("").getAbsolutePath());
+
 		processArgs();
 
-		Config.load(configFileName);
+		Config.load(resolve(configFileName).getPath());
 
-		// get the current directory (.)
-		baseDirectory = new File(new File("").getAbsolutePath());
 		// get the nachos directory (./nachos)
 		nachosDirectory = new File(baseDirectory, "nachos");
 
@@ -48,7 +53,7 @@ public final class Machine {
 
 		// get the test directory
 		if (testDirectoryName != null) {
-			testDirectory = new File(testDirectoryName);
+			testDirectory = resolve(testDirectoryName);
 		}
 		else {
 			// use ../test
@@ -127,6 +132,19 @@ public final class Machine {
 		return result;
 	}
 
+	/**
+	 * Return the file with the specified name. Relative names are relative to
+	 * the current directory, or to the job's directory under
+	 * <tt>BatchRunner</tt>.
+	 */
+	private static File resolve(String name) {
+		File file = new File(name);
+		if (!BatchRunner.isBatchJob() || file.isAbsolute())
+			return file;
+
+		return new File(baseDirectory, name);
+	}
+
 	private static void processArgs() {
 		for (int i = 0; i < args.length;) {
 			String arg = args[i++];
@@ -137,6 +155,8 @@ public final class Machine {
 				}
 				else if (arg.equals("-h")) {
 					System.out.print(help);
+					if (BatchRunner.isBatchJob())
+						BatchRunner.exitJob(1);
 					System.exit(1);
 				}
 				else if (arg.equals("-m")) {
@@ -161,8 +181,18 @@ public final class Machine {
 					Lib.assertTrue(i < args.length, "switch without argument");
 					shellProgramName = args[i++];
 				}
+				else if (arg.equals("-snapshot")) {
+					Lib.assertTrue(i < args.length, "switch without argument");
+					snapshotFile = resolve(args[i++]);
+				}
+				else if (arg.equals("-restore")) {
+					Lib.assertTrue(i < args.length, "switch without argument");
+					restoreFile = resolve(args[i++]);
+				}
 				else if (arg.equals("-z")) {
 					System.out.print(copyright);
+					if (BatchRunner.isBatchJob())
+						BatchRunner.exitJob(1);
 					System.exit(1);
 				}
 				// these switches are reserved for the autograder
@@ -225,7 +255,7 @@ public final class Machine {
 		Class clsThreadedKernel = Lib
 				.loadClass("nachos.threads.ThreadedKernel");
 		Class clsKThread = Lib.loadClass("nachos.threads.KThread");
-		//Class clsCommunicator = Lib.loadClass("nachos.threads.Communicator");
+		Class<?> clsCommunicator = Lib.loadClass("nachos.threads.Communicator");
 		Class clsSemaphore = Lib.loadClass("nachos.threads.Semaphore");
 		Class clsLock = Lib.loadClass("nachos.threads.Lock");
 		Class clsCondition = Lib.loadClass("nachos.threads.Condition");
@@ -262,10 +292,10 @@ public final class Machine {
 
 		Lib.checkField(clsKThread, "schedulingState", clsObject);
 
-		//Lib.checkConstructor(clsCommunicator, new Class[] {});
-		//Lib.checkMethod(clsCommunicator, "speak", new Class[] { int.class },
-		//void.class);
-                //Lib.checkMethod(clsCommunicator, "listen", new Class[] {}, int.class);
+		Lib.checkConstructor(clsCommunicator, new Class<?>[] {});
+		Lib.checkMethod(clsCommunicator, "speak", new Class<?>[] { int.class },
+				void.class);
+		Lib.checkMethod(clsCommunicator, "listen", new Class<?>[] {}, int.class);
 
 		Lib.checkConstructor(clsSemaphore, new Class[] { int.class });
 		Lib.checkMethod(clsSemaphore, "P", new Class[] {}, void.class);
@@ -417,6 +447,32 @@ public final class Machine {
 
 	private static String shellProgramName = null;
 
+	/**
+	 * Return the file to which the kernel should save a <tt>Snapshot</tt>
+	 * once its first program is loaded, as given by the <tt>-snapshot</tt>
+	 * switch.
+	 * 
+	 * @return the snapshot file, or <tt>null</tt> if no snapshot was requested.
+	 */
+	public static File getSnapshotFile() {
+		return snapshotFile;
+	}
+
+	/**
+	 * Return the file from which the kernel should restore a
+	 * <tt>Snapshot</tt> instead of loading its first program, as given by the
+	 * <tt>-restore</tt> switch.
+	 * 
+	 * @return the snapshot file, or <tt>null</tt> if no restore was requested.
+	 */
+	public static File getRestoreFile() {
+		return restoreFile;
+	}
+
+	private static File snapshotFile = null;
+
+	private static File restoreFile = null;
+
 	/**
 	 * Return the name of the process class that the kernel should use. In the
 	 * multi-programming project, returns <tt>nachos.userprog.UserProcess</tt>.
@@ -447,10 +503,17 @@ public final class Machine {
 	private static String[] args = null;
 
 	private static Stats stats = new Stats();
+
+	static Stats stats() {
+		return stats;
+	}
+
         public static void incrNumCOFFReads() { stats.numCOFFReads++; }
         public static void incrNumSwapReads() { stats.numSwapReads++; }
         public static void incrNumSwapWrites() { stats.numSwapWrites++; }
         public static void incrNumSwapSkips() { stats.numSwapSkips++; }
+        public static void incrNumDeadlineMisses() { stats.numDeadlineMisses++; }
+        public static void recordCoreReady(int core, int length) { stats.recordCoreReady(core, length); }
 
 	private static int numPhysPages = -1;
 
@@ -477,7 +540,13 @@ public final class Machine {
 			+ "\t\tlong).\n" + "\n" + "\t-x <program>\n"
 			+ "\t\tSpecify a program that UserKernel.run() should execute,\n"
 			+ "\t\tinstead of the value of the configuration variable\n"
-			+ "\t\tKernel.shellProgram\n" + "\n" + "\t-z\n"
+			+ "\t\tKernel.shellProgram\n" + "\n"
+			+ "\t-snapshot <file>\n"
+			+ "\t\tSave the machine to a snapshot file once UserKernel.run()\n"
+			+ "\t\thas loaded its program.\n" + "\n"
+			+ "\t-restore <file>\n"
+			+ "\t\tResume from a snapshot file instead of loading the\n"
+			+ "\t\tprogram.\n" + "\n" + "\t-z\n"
 			+ "\t\tprint the copyright message\n" + "\n"
 			+ "\t-- <grader class>\n"
 			+ "\t\tSpecify an autograder class to use, instead of\n"
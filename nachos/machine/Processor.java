@@ -4,6 +4,12 @@ package nachos.machine;
 
 import nachos.security.*;
 
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+
 /**
  * The <tt>Processor</tt> class simulates a MIPS processor that supports a
  * subset of the R3000 instruction set. Specifically, the processor lacks all
@@ -40,14 +46,45 @@ public final class Processor {
 		// let config file value override
 		usingTLB = Config.getBoolean ("Processor.usingTLB", usingTLB);
 
+		// "block" runs hot code from cached runs of decoded instructions
+		String engine = Config.getString("Processor.engine", "interpreter");
+		if (engine.equals("block"))
+			usingBlocks = true;
+		else
+			Lib.assertTrue(engine.equals("interpreter"),
+					"unknown Processor.engine: " + engine);
+
+		tickBatching = Config.getBoolean("Processor.tickBatching", false);
+
+		if (Config.getBoolean("Processor.profile", false))
+			profiler = new Profiler(numPhysPages);
+
 		this.numPhysPages = numPhysPages;
 
 		for (int i = 0; i < numUserRegisters; i++)
 			registers[i] = 0;
 
-		mainMemory = new byte[pageSize * numPhysPages];
+		if (Config.getBoolean("Processor.offHeapMemory", false)) {
+			int numChunks = (numPhysPages + chunkPages - 1) / chunkPages;
+			memoryChunks = new ByteBuffer[numChunks];
+			mainMemory = null;
+		}
+		else {
+			mainMemory = new byte[pageSize * numPhysPages];
+		}
+
+		decodeCache = new DecodedInstruction[numPhysPages][];
+		blockCache = new DecodedBlock[numPhysPages][];
+		pageVersions = new int[numPhysPages];
 
 		if (usingTLB) {
+			tlbSize = Config.getInteger("Processor.tlbSize", tlbSize);
+			tlbWays = Config.getInteger("Processor.tlbWays", tlbSize);
+			Lib.assertTrue(tlbSize > 0 && tlbWays > 0
+					&& tlbSize % tlbWays == 0,
+					"Processor.tlbWays must divide Processor.tlbSize");
+			tlbSets = tlbSize / tlbWays;
+
 			translations = new TranslationEntry[tlbSize];
 			for (int i = 0; i < tlbSize; i++)
 				translations[i] = new TranslationEntry();
@@ -89,18 +126,53 @@ public final class Processor {
 
 		registers[regNextPC] = registers[regPC] + 4;
 
+		invalidateTranslations();
+
 		Machine.autoGrader().runProcessor(privilege);
 
 		Instruction inst = new Instruction();
 
+		if (tickBatching)
+			runBatched(inst);
+
 		while (true) {
-			try {
-				inst.run();
-			}
-			catch (MipsException e) {
-				e.handle();
+			if (!inst.run())
+				handleTrap();
+
+			privilege.interrupt.tick(false);
+		}
+	}
+
+	/**
+	 * Execute instructions, advancing simulated time in batches. Before each
+	 * batch, the processor asks the interrupt controller when the next
+	 * interrupt is due, and runs every instruction before that point without
+	 * checking for interrupts. Only the instruction whose tick reaches the due
+	 * time, or one that causes an exception, is followed by a full tick, so
+	 * the resulting tick counts are identical to <tt>run()</tt>. Never
+	 * returns.
+	 * 
+	 * @param inst the instruction object to execute with.
+	 */
+	private void runBatched(Instruction inst) {
+		Stats stats = privilege.stats;
+
+		while (true) {
+			long quiet = (privilege.interrupt.nextInterruptTime()
+					- stats.totalTicks - 1) / Stats.UserTick;
+			long done = 0;
+
+			while (done < quiet && inst.run())
+				done++;
+
+			if (trapPending || !inst.run()) {
+				// the handler must see the ticks of the completed instructions
+				privilege.interrupt.advanceUserTicks(done);
+				done = 0;
+				handleTrap();
 			}
 
+			privilege.interrupt.advanceUserTicks(done);
 			privilege.interrupt.tick(false);
 		}
 	}
@@ -175,6 +247,7 @@ public final class Processor {
 		Lib.assertTrue(!usingTLB);
 
 		this.translations = pageTable;
+		invalidateTranslations();
 	}
 
 	/**
@@ -188,6 +261,59 @@ public final class Processor {
 		return tlbSize;
 	}
 
+	/**
+	 * Return the associativity of this processor's TLB. The TLB is divided into
+	 * <tt>getTLBSize() / getTLBWays()</tt> sets of this many entries each; a
+	 * TLB with a single set is fully associative.
+	 * 
+	 * @return the number of entries in each TLB set.
+	 */
+	public int getTLBWays() {
+		Lib.assertTrue(usingTLB);
+
+		return tlbWays;
+	}
+
+	/**
+	 * Return the index of the first TLB entry in the set that can hold a
+	 * translation for the specified virtual page. The processor only searches
+	 * the <tt>getTLBWays()</tt> entries starting at this index when it
+	 * translates an address on that page.
+	 * 
+	 * @param vpn the virtual page number.
+	 * @return the index of the first entry in the page's TLB set.
+	 */
+	public int getTLBSetIndex(int vpn) {
+		Lib.assertTrue(usingTLB);
+
+		return (int) (((long) vpn & 0xFFFFFFFFL) % tlbSets) * tlbWays;
+	}
+
+	/**
+	 * Set the address space identifier of the running program. A TLB entry is
+	 * only used to translate an address if its <tt>asid</tt> matches this
+	 * value, so entries belonging to different address spaces can stay in the
+	 * TLB across a context switch.
+	 * 
+	 * @param asid the address space identifier to use.
+	 */
+	public void setASID(int asid) {
+		Lib.assertTrue(asid >= 0);
+
+		this.asid = asid;
+		invalidateTranslations();
+	}
+
+	/**
+	 * Return the address space identifier set by the last call to
+	 * <tt>setASID()</tt>.
+	 * 
+	 * @return the current address space identifier.
+	 */
+	public int getASID() {
+		return asid;
+	}
+
 	/**
 	 * Returns the specified TLB entry.
 	 * 
@@ -205,8 +331,9 @@ public final class Processor {
 	 * Fill the specified TLB entry.
 	 * 
 	 * <p>
-	 * The TLB is fully associative, so the location of an entry within the TLB
-	 * does not affect anything.
+	 * If the TLB is fully associative (the default), the location of an entry
+	 * within the TLB does not affect anything. Otherwise, an entry is only
+	 * found if it is written to the set given by <tt>getTLBSetIndex()</tt>.
 	 * 
 	 * @param number the index into the TLB.
 	 * @param entry the new contents of the TLB entry.
@@ -216,6 +343,7 @@ public final class Processor {
 		Lib.assertTrue(number >= 0 && number < tlbSize);
 
 		translations[number] = new TranslationEntry(entry);
+		invalidateTranslations();
 	}
 
 	/**
@@ -232,12 +360,226 @@ public final class Processor {
 	 * Return a reference to the physical memory array. The size of this array
 	 * is <tt>pageSize * getNumPhysPages()</tt>.
 	 * 
+	 * <p>
+	 * Not available when <tt>Processor.offHeapMemory</tt> is set; use
+	 * <tt>readPhysMemory()</tt>, <tt>writePhysMemory()</tt> and
+	 * <tt>fillPhysMemory()</tt> instead.
+	 * 
 	 * @return the main memory array.
 	 */
 	public byte[] getMemory() {
+		Lib.assertTrue(mainMemory != null,
+				"physical memory is off-heap; use the bulk access methods");
+
 		return mainMemory;
 	}
 
+	/**
+	 * Return the execution profiler, which is only present when the
+	 * <tt>Processor.profile</tt> configuration key is set.
+	 * 
+	 * @return the profiler, or <tt>null</tt> if profiling is disabled.
+	 */
+	public Profiler getProfiler() {
+		return profiler;
+	}
+
+	/**
+	 * Return the size of physical memory, in bytes.
+	 * 
+	 * @return <tt>pageSize * getNumPhysPages()</tt>.
+	 */
+	public int getMemorySize() {
+		return numPhysPages * pageSize;
+	}
+
+	/**
+	 * Copy bytes out of physical memory.
+	 * 
+	 * @param paddr the first physical address to read.
+	 * @param data the array to copy into.
+	 * @param offset the first byte to write in the array.
+	 * @param length the number of bytes to copy.
+	 */
+	public void readPhysMemory(int paddr, byte[] data, int offset, int length) {
+		checkPhysRange(paddr, length);
+		Lib.assertTrue(offset >= 0 && length >= 0
+				&& offset + length <= data.length);
+
+		if (mainMemory != null) {
+			System.arraycopy(mainMemory, paddr, data, offset, length);
+			return;
+		}
+
+		while (length > 0) {
+			int amount = Math.min(length, chunkSize - (paddr & chunkMask));
+			ByteBuffer chunk = memoryChunks[paddr >>> chunkShift];
+			if (chunk == null)
+				Arrays.fill(data, offset, offset + amount, (byte) 0);
+			else
+				chunk.get(paddr & chunkMask, data, offset, amount);
+
+			paddr += amount;
+			offset += amount;
+			length -= amount;
+		}
+	}
+
+	/**
+	 * Copy bytes into physical memory, discarding any decoded instructions
+	 * cached for the pages that change.
+	 * 
+	 * @param paddr the first physical address to write.
+	 * @param data the array to copy from.
+	 * @param offset the first byte to read in the array.
+	 * @param length the number of bytes to copy.
+	 */
+	public void writePhysMemory(int paddr, byte[] data, int offset, int length) {
+		checkPhysRange(paddr, length);
+		Lib.assertTrue(offset >= 0 && length >= 0
+				&& offset + length <= data.length);
+
+		invalidatePages(paddr, length);
+
+		if (mainMemory != null) {
+			System.arraycopy(data, offset, mainMemory, paddr, length);
+			return;
+		}
+
+		while (length > 0) {
+			int amount = Math.min(length, chunkSize - (paddr & chunkMask));
+			memoryChunk(paddr).put(paddr & chunkMask, data, offset, amount);
+
+			paddr += amount;
+			offset += amount;
+			length -= amount;
+		}
+	}
+
+	/**
+	 * Set a range of physical memory to a single value, discarding any decoded
+	 * instructions cached for the pages that change.
+	 * 
+	 * @param paddr the first physical address to fill.
+	 * @param length the number of bytes to fill.
+	 * @param value the value to store in each byte.
+	 */
+	public void fillPhysMemory(int paddr, int length, byte value) {
+		checkPhysRange(paddr, length);
+
+		invalidatePages(paddr, length);
+
+		if (mainMemory != null) {
+			Arrays.fill(mainMemory, paddr, paddr + length, value);
+			return;
+		}
+
+		while (length > 0) {
+			int amount = Math.min(length, chunkSize - (paddr & chunkMask));
+
+			// uncommitted chunks already read as zero
+			ByteBuffer chunk = memoryChunks[paddr >>> chunkShift];
+			if (chunk != null || value != 0) {
+				chunk = memoryChunk(paddr);
+				for (int i = 0; i < amount; i++)
+					chunk.put((paddr & chunkMask) + i, value);
+			}
+
+			paddr += amount;
+			length -= amount;
+		}
+	}
+
+	private void checkPhysRange(int paddr, int length) {
+		Lib.assertTrue(paddr >= 0 && length >= 0
+				&& (long) paddr + length <= getMemorySize());
+	}
+
+	private void invalidatePages(int paddr, int length) {
+		if (length > 0) {
+			for (int ppn = paddr / pageSize; ppn <= (paddr + length - 1)
+					/ pageSize; ppn++)
+				invalidatePage(ppn);
+		}
+	}
+
+	/**
+	 * Return the off-heap chunk holding the specified physical address,
+	 * committing it first if it has never been written.
+	 */
+	private ByteBuffer memoryChunk(int paddr) {
+		ByteBuffer chunk = memoryChunks[paddr >>> chunkShift];
+		if (chunk == null) {
+			// direct buffers start out zeroed
+			chunk = ByteBuffer.allocateDirect(chunkSize).order(
+					ByteOrder.LITTLE_ENDIAN);
+			memoryChunks[paddr >>> chunkShift] = chunk;
+		}
+
+		return chunk;
+	}
+
+	private int loadByte(int paddr) {
+		if (mainMemory != null)
+			return mainMemory[paddr];
+
+		ByteBuffer chunk = memoryChunks[paddr >>> chunkShift];
+		return chunk == null ? 0 : chunk.get(paddr & chunkMask);
+	}
+
+	private int loadHalf(int paddr) {
+		if (mainMemory != null)
+			return (short) memoryShorts.get(mainMemory, paddr);
+
+		ByteBuffer chunk = memoryChunks[paddr >>> chunkShift];
+		return chunk == null ? 0 : chunk.getShort(paddr & chunkMask);
+	}
+
+	private int loadWord(int paddr) {
+		if (mainMemory != null)
+			return (int) memoryWords.get(mainMemory, paddr);
+
+		ByteBuffer chunk = memoryChunks[paddr >>> chunkShift];
+		return chunk == null ? 0 : chunk.getInt(paddr & chunkMask);
+	}
+
+	private void storeByte(int paddr, int value) {
+		if (mainMemory != null)
+			mainMemory[paddr] = (byte) value;
+		else
+			memoryChunk(paddr).put(paddr & chunkMask, (byte) value);
+	}
+
+	private void storeHalf(int paddr, int value) {
+		if (mainMemory != null)
+			memoryShorts.set(mainMemory, paddr, (short) value);
+		else
+			memoryChunk(paddr).putShort(paddr & chunkMask, (short) value);
+	}
+
+	private void storeWord(int paddr, int value) {
+		if (mainMemory != null)
+			memoryWords.set(mainMemory, paddr, value);
+		else
+			memoryChunk(paddr).putInt(paddr & chunkMask, value);
+	}
+
+	/**
+	 * Discard any decoded instructions cached for the specified physical page.
+	 * The processor caches the decoded form of every instruction it fetches, so
+	 * this must be called whenever the contents of a physical page are changed
+	 * by anything other than a user-mode store.
+	 * 
+	 * @param ppn the physical page whose contents have changed.
+	 */
+	public void invalidatePage(int ppn) {
+		Lib.assertTrue(ppn >= 0 && ppn < numPhysPages);
+
+		decodeCache[ppn] = null;
+		blockCache[ppn] = null;
+		pageVersions[ppn]++;
+	}
+
 	/**
 	 * Concatenate a page number and an offset into an address.
 	 * 
@@ -287,11 +629,10 @@ public final class Processor {
 	 * @param vaddr the virtual address to translate.
 	 * @param size the size of the memory reference (must be 1, 2, or 4).
 	 * @param writing <tt>true</tt> if the memory reference is a write.
-	 * @return the physical address.
-	 * @exception MipsException if a translation error occurred.
+	 * @return the physical address, or -1 if a translation error occurred, in
+	 * which case the trap has been recorded.
 	 */
-	private int translate(int vaddr, int size, boolean writing)
-			throws MipsException {
+	private int translate(int vaddr, int size, boolean writing) {
 		if (Lib.test(dbgProcessor))
 			System.out.println("\ttranslate vaddr=0x" + Lib.toHexString(vaddr)
 					+ (writing ? ", write" : ", read..."));
@@ -299,13 +640,29 @@ public final class Processor {
 		// check alignment
 		if ((vaddr & (size - 1)) != 0) {
 			Lib.debug(dbgProcessor, "\t\talignment error");
-			throw new MipsException(exceptionAddressError, vaddr);
+			raiseTrap(exceptionAddressError, vaddr);
+			return -1;
 		}
 
 		// calculate virtual page number and offset from the virtual address
 		int vpn = pageFromAddress(vaddr);
 		int offset = offsetFromAddress(vaddr);
 
+		// try the translation cache first; a write only hits once the entry
+		// has been marked dirty
+		int slot = vpn & (translationCacheSize - 1);
+		if (cachedEpochs[slot] == translationEpoch && cachedVpns[slot] == vpn
+				&& (!writing || cachedDirty[slot])) {
+			int paddr = (cachedPpns[slot] * pageSize) + offset;
+
+			if (usingTLB)
+				privilege.stats.recordTLBAccess(asid, true);
+
+			if (Lib.test(dbgProcessor))
+				System.out.println("\t\tpaddr=0x" + Lib.toHexString(paddr));
+			return paddr;
+		}
+
 		TranslationEntry entry = null;
 
 		// if not using a TLB, then the vpn is an index into the table
@@ -314,37 +671,44 @@ public final class Processor {
 					|| translations[vpn] == null || !translations[vpn].valid) {
 				privilege.stats.numPageFaults++;
 				Lib.debug(dbgProcessor, "\t\tpage fault");
-				throw new MipsException(exceptionPageFault, vaddr);
+				raiseTrap(exceptionPageFault, vaddr);
+				return -1;
 			}
 
 			entry = translations[vpn];
 		}
-		// else, look through all TLB entries for matching vpn
+		// else, look through the TLB entries in the page's set for matching
+		// vpn and address space
 		else {
-			for (int i = 0; i < tlbSize; i++) {
-				if (translations[i].valid && translations[i].vpn == vpn) {
+			int first = getTLBSetIndex(vpn);
+			for (int i = first; i < first + tlbWays; i++) {
+				if (translations[i].valid && translations[i].vpn == vpn
+						&& translations[i].asid == asid) {
 					entry = translations[i];
 					break;
 				}
 			}
+			privilege.stats.recordTLBAccess(asid, entry != null);
 			if (entry == null) {
-				privilege.stats.numTLBMisses++;
 				Lib.debug(dbgProcessor, "\t\tTLB miss");
-				throw new MipsException(exceptionTLBMiss, vaddr);
+				raiseTrap(exceptionTLBMiss, vaddr);
+				return -1;
 			}
 		}
 
 		// check if trying to write a read-only page
 		if (entry.readOnly && writing) {
 			Lib.debug(dbgProcessor, "\t\tread-only exception");
-			throw new MipsException(exceptionReadOnly, vaddr);
+			raiseTrap(exceptionReadOnly, vaddr);
+			return -1;
 		}
 
 		// check if physical page number is out of range
 		int ppn = entry.ppn;
 		if (ppn < 0 || ppn >= numPhysPages) {
 			Lib.debug(dbgProcessor, "\t\tbad ppn");
-			throw new MipsException(exceptionBusError, vaddr);
+			raiseTrap(exceptionBusError, vaddr);
+			return -1;
 		}
 
 		// set used and dirty bits as appropriate
@@ -352,6 +716,11 @@ public final class Processor {
 		if (writing)
 			entry.dirty = true;
 
+		cachedEpochs[slot] = translationEpoch;
+		cachedVpns[slot] = vpn;
+		cachedPpns[slot] = ppn;
+		cachedDirty[slot] = entry.dirty && !entry.readOnly;
+
 		int paddr = (ppn * pageSize) + offset;
 
 		if (Lib.test(dbgProcessor))
@@ -359,24 +728,52 @@ public final class Processor {
 		return paddr;
 	}
 
+	/**
+	 * Discard every entry in the translation cache. This must be called
+	 * whenever the kernel could have changed the translation state: when the
+	 * page table or a TLB entry is set, and whenever the kernel gets control,
+	 * since it may modify a <tt>TranslationEntry</tt> in place.
+	 */
+	private void invalidateTranslations() {
+		translationEpoch++;
+	}
+
 	/**
 	 * Read </i>size</i> (1, 2, or 4) bytes of virtual memory at <i>vaddr</i>,
 	 * and return the result.
 	 * 
 	 * @param vaddr the virtual address to read from.
 	 * @param size the number of bytes to read (1, 2, or 4).
-	 * @return the value read.
-	 * @exception MipsException if a translation error occurred.
+	 * @return the value read, or 0 if a translation error occurred, in which
+	 * case the trap has been recorded.
 	 */
-	private int readMem(int vaddr, int size) throws MipsException {
+	private int readMem(int vaddr, int size) {
 		if (Lib.test(dbgProcessor))
 			System.out.println("\treadMem vaddr=0x" + Lib.toHexString(vaddr)
 					+ ", size=" + size);
 
 		Lib.assertTrue(size == 1 || size == 2 || size == 4);
 
-		int value = Lib.bytesToInt(mainMemory, translate(vaddr, size, false),
-				size);
+		int paddr = translate(vaddr, size, false);
+		if (paddr < 0)
+			return 0;
+
+		int value;
+
+		if (profiler != null)
+			profiler.countLoad(paddr);
+
+		switch (size) {
+		case 1:
+			value = loadByte(paddr);
+			break;
+		case 2:
+			value = loadHalf(paddr);
+			break;
+		default:
+			value = loadWord(paddr);
+			break;
+		}
 
 		if (Lib.test(dbgProcessor))
 			System.out.println("\t\tvalue read=0x"
@@ -392,9 +789,8 @@ public final class Processor {
 	 * @param vaddr the virtual address to write to.
 	 * @param size the number of bytes to write (1, 2, or 4).
 	 * @param value the value to store.
-	 * @exception MipsException if a translation error occurred.
 	 */
-	private void writeMem(int vaddr, int size, int value) throws MipsException {
+	private void writeMem(int vaddr, int size, int value) {
 		if (Lib.test(dbgProcessor))
 			System.out.println("\twriteMem vaddr=0x" + Lib.toHexString(vaddr)
 					+ ", size=" + size + ", value=0x"
@@ -402,7 +798,33 @@ public final class Processor {
 
 		Lib.assertTrue(size == 1 || size == 2 || size == 4);
 
-		Lib.bytesFromInt(mainMemory, translate(vaddr, size, true), size, value);
+		int paddr = translate(vaddr, size, true);
+		if (paddr < 0)
+			return;
+
+		if (profiler != null)
+			profiler.countStore(paddr);
+
+		switch (size) {
+		case 1:
+			storeByte(paddr, value);
+			break;
+		case 2:
+			storeHalf(paddr, value);
+			break;
+		default:
+			storeWord(paddr, value);
+			break;
+		}
+
+		// a store over a decoded instruction makes its decoded copy stale.
+		// Every instruction in a block has been decoded, so a store to a
+		// word that has not cannot affect any block.
+		DecodedInstruction[] page = decodeCache[paddr / pageSize];
+		if (page != null && page[(paddr % pageSize) / 4] != null) {
+			page[(paddr % pageSize) / 4] = null;
+			pageVersions[paddr / pageSize]++;
+		}
 	}
 
 	/**
@@ -552,6 +974,15 @@ public final class Processor {
 	/** Number of TLB entries. */
 	private int tlbSize = 4;
 
+	/** Number of TLB entries in each set. */
+	private int tlbWays;
+
+	/** Number of TLB sets. */
+	private int tlbSets;
+
+	/** The address space identifier of the running program. */
+	private int asid = 0;
+
 	/**
 	 * Either an associative or direct-mapped set of translation entries,
 	 * depending on whether there is a TLB.
@@ -567,9 +998,98 @@ public final class Processor {
 	/** Number of physical pages in memory. */
 	private int numPhysPages;
 
-	/** Main memory for user programs. */
+	/**
+	 * Main memory for user programs, or <tt>null</tt> if memory is kept
+	 * off-heap in <tt>memoryChunks</tt>.
+	 */
 	private byte[] mainMemory;
 
+	/**
+	 * Off-heap main memory, used when <tt>Processor.offHeapMemory</tt> is
+	 * set. Memory is divided into chunks of <tt>chunkPages</tt> pages, each
+	 * committed the first time it is written; an uncommitted chunk reads as
+	 * zero.
+	 */
+	private ByteBuffer[] memoryChunks;
+
+	private static final int chunkPages = 64;
+
+	private static final int chunkSize = chunkPages * pageSize;
+
+	private static final int chunkShift = Integer
+			.numberOfTrailingZeros(chunkSize);
+
+	private static final int chunkMask = chunkSize - 1;
+
+	/**
+	 * Little-endian views of <tt>mainMemory</tt> for halfword and word
+	 * accesses. <tt>translate()</tt> has already checked alignment.
+	 */
+	private static final VarHandle memoryShorts = MethodHandles
+			.byteArrayViewVarHandle(short[].class, ByteOrder.LITTLE_ENDIAN);
+
+	private static final VarHandle memoryWords = MethodHandles
+			.byteArrayViewVarHandle(int[].class, ByteOrder.LITTLE_ENDIAN);
+
+	/**
+	 * Decoded instructions, indexed by physical page and then by word within
+	 * the page. A page's array is allocated the first time an instruction is
+	 * fetched from it.
+	 */
+	private DecodedInstruction[][] decodeCache;
+
+	/** <tt>true</tt> if hot code is executed from cached decoded blocks. */
+	private boolean usingBlocks = false;
+
+	/** The execution profiler, or <tt>null</tt> if profiling is disabled. */
+	private Profiler profiler = null;
+
+	/** <tt>true</tt> if user ticks are accounted in batches. */
+	private boolean tickBatching = false;
+
+	/** Decoded blocks, indexed like <tt>decodeCache</tt>. */
+	private DecodedBlock[][] blockCache;
+
+	/**
+	 * Incremented every time the contents of a physical page change in a way
+	 * that could affect code, so that stale decoded blocks can be detected.
+	 */
+	private int[] pageVersions;
+
+	/**
+	 * Incremented every time the kernel gets control, either through an
+	 * exception or an interrupt. The kernel may change the translation state
+	 * or switch address spaces, so a decoded block cannot be continued across a
+	 * change in this value.
+	 */
+	private int kernelEntries = 0;
+
+	/**
+	 * The number of times an instruction must be fetched outside of a decoded
+	 * block before a decoded block is built starting at it.
+	 */
+	private static final int hotBlockThreshold = 16;
+
+	/**
+	 * A direct-mapped cache of recent translations, indexed by the low bits of
+	 * the virtual page number. A slot is valid only if its epoch matches
+	 * <tt>translationEpoch</tt>. Since <tt>translate()</tt> sets the
+	 * <tt>used</tt> bit when a slot is filled, and the <tt>dirty</tt> bit
+	 * before a slot can satisfy a write, hits never need to touch the
+	 * <tt>TranslationEntry</tt>.
+	 */
+	private static final int translationCacheSize = 64;
+
+	private long[] cachedEpochs = new long[translationCacheSize];
+
+	private int[] cachedVpns = new int[translationCacheSize];
+
+	private int[] cachedPpns = new int[translationCacheSize];
+
+	private boolean[] cachedDirty = new boolean[translationCacheSize];
+
+	private long translationEpoch = 1;
+
 	/** The kernel exception handler, called on every user exception. */
 	private Runnable exceptionHandler = null;
 
@@ -582,124 +1102,188 @@ public final class Processor {
 	private class ProcessorPrivilege implements Privilege.ProcessorPrivilege {
 		public void flushPipe() {
 			finishLoad();
+			kernelEntries++;
+			invalidateTranslations();
 		}
 	}
 
-	private class MipsException extends Exception {
-		public MipsException(int cause) {
-			Lib.assertTrue(cause >= 0 && cause < exceptionNames.length);
-
-			this.cause = cause;
-		}
+	/**
+	 * Record a trap raised by the current instruction. The instruction stops
+	 * at this point, and <tt>run()</tt> delivers the trap once it returns.
+	 * 
+	 * @param cause the exception cause.
+	 */
+	private void raiseTrap(int cause) {
+		Lib.assertTrue(cause >= 0 && cause < exceptionNames.length);
 
-		public MipsException(int cause, int badVAddr) {
-			this(cause);
+		trapPending = true;
+		trapCause = cause;
+		trapHasBadVAddr = false;
+	}
 
-			hasBadVAddr = true;
-			this.badVAddr = badVAddr;
-		}
+	/**
+	 * Record a trap raised by the current instruction, along with the virtual
+	 * address that caused it.
+	 * 
+	 * @param cause the exception cause.
+	 * @param badVAddr the faulting virtual address.
+	 */
+	private void raiseTrap(int cause, int badVAddr) {
+		raiseTrap(cause);
 
-		public void handle() {
-			writeRegister(regCause, cause);
+		trapHasBadVAddr = true;
+		trapBadVAddr = badVAddr;
+	}
 
-			if (hasBadVAddr)
-				writeRegister(regBadVAddr, badVAddr);
+	/**
+	 * Deliver the recorded trap to the kernel's exception handler. The record
+	 * is cleared first, since the handler may switch to another thread that
+	 * runs (and traps on) this processor.
+	 */
+	private void handleTrap() {
+		Lib.assertTrue(trapPending);
+		trapPending = false;
 
-			if (Lib.test(dbgDisassemble) || Lib.test(dbgFullDisassemble))
-				System.out.println("exception: " + exceptionNames[cause]);
+		writeRegister(regCause, trapCause);
 
-			finishLoad();
+		if (trapHasBadVAddr)
+			writeRegister(regBadVAddr, trapBadVAddr);
 
-			Lib.assertTrue(exceptionHandler != null);
+		if (Lib.test(dbgDisassemble) || Lib.test(dbgFullDisassemble))
+			System.out.println("exception: " + exceptionNames[trapCause]);
 
-			// autograder might not want kernel to know about this exception
-			if (!Machine.autoGrader().exceptionHandler(privilege))
-				return;
+		finishLoad();
+		kernelEntries++;
+		invalidateTranslations();
 
-			exceptionHandler.run();
-		}
+		Lib.assertTrue(exceptionHandler != null);
 
-		private boolean hasBadVAddr = false;
+		// autograder might not want kernel to know about this exception
+		if (!Machine.autoGrader().exceptionHandler(privilege))
+			return;
 
-		private int cause, badVAddr;
+		exceptionHandler.run();
 	}
 
+	/**
+	 * The trap raised by the instruction being executed, if any. Traps are
+	 * frequent (every system call and TLB miss is one), so they are recorded
+	 * here rather than allocated and thrown.
+	 */
+	private boolean trapPending = false;
+
+	private boolean trapHasBadVAddr;
+
+	private int trapCause, trapBadVAddr;
+
 	private class Instruction {
-		public void run() throws MipsException {
+		/**
+		 * Execute one instruction.
+		 * 
+		 * @return <tt>false</tt> if the instruction trapped, in which case the
+		 * trap has been recorded and the instruction has had no effect on the
+		 * registers beyond what the trap requires.
+		 */
+		public boolean run() {
 			// hopefully this looks familiar to 152 students?
-			fetch();
+			if (!fetch())
+				return false;
 			decode();
-			execute();
-			writeBack();
+			return execute() && writeBack();
 		}
 
 		private boolean test(int flag) {
 			return Lib.test(flag, flags);
 		}
 
-		private void fetch() throws MipsException {
+		private boolean fetch() {
 			if ((Lib.test(dbgDisassemble) && !Lib.test(dbgProcessor))
 					|| Lib.test(dbgFullDisassemble))
 				System.out.print("PC=0x" + Lib.toHexString(registers[regPC])
 						+ "\t");
 
-			value = readMem(registers[regPC], 4);
-		}
+			// continue the current decoded block if nothing has disturbed it
+			if (block != null) {
+				if (blockIndex < block.instructions.length
+						&& registers[regPC] == blockPC + blockIndex * 4
+						&& blockKernelEntries == kernelEntries
+						&& block.version == pageVersions[block.ppn]) {
+					// the kernel has not run since the block was entered, so
+					// the fetch would hit the same TLB entry; count it
+					if (usingTLB)
+						privilege.stats.recordTLBAccess(asid, true);
+
+					if (profiler != null)
+						profiler.countInstruction(block.ppn * pageSize
+								+ (block.index + blockIndex) * 4,
+								registers[regPC]);
+
+					decoded = block.instructions[blockIndex++];
+					return true;
+				}
 
-		private void decode() {
-			op = Lib.extract(value, 26, 6);
-			rs = Lib.extract(value, 21, 5);
-			rt = Lib.extract(value, 16, 5);
-			rd = Lib.extract(value, 11, 5);
-			sh = Lib.extract(value, 6, 5);
-			func = Lib.extract(value, 0, 6);
-			target = Lib.extract(value, 0, 26);
-			imm = Lib.extend(value, 0, 16);
+				block = null;
+			}
 
-			Mips info;
-			switch (op) {
-			case 0:
-				info = Mips.specialtable[func];
-				break;
-			case 1:
-				info = Mips.regimmtable[rt];
-				break;
-			default:
-				info = Mips.optable[op];
-				break;
+			int paddr = translate(registers[regPC], 4, false);
+			if (paddr < 0)
+				return false;
+
+			int ppn = paddr / pageSize;
+			int index = (paddr % pageSize) / 4;
+
+			decoded = getDecoded(ppn, index);
+
+			if (profiler != null)
+				profiler.countInstruction(paddr, registers[regPC]);
+
+			if (usingBlocks && ++decoded.fetches >= hotBlockThreshold) {
+				DecodedBlock[] blocks = blockCache[ppn];
+				if (blocks == null) {
+					blocks = new DecodedBlock[pageSize / 4];
+					blockCache[ppn] = blocks;
+				}
+
+				// a block built before its page was modified is stale
+				block = blocks[index];
+				if (block == null || block.version != pageVersions[ppn]) {
+					block = new DecodedBlock(ppn, index);
+					blocks[index] = block;
+				}
+
+				blockPC = registers[regPC];
+				blockIndex = 1;
+				blockKernelEntries = kernelEntries;
 			}
 
-			operation = info.operation;
-			name = info.name;
-			format = info.format;
-			flags = info.flags;
+			return true;
+		}
+
+		private void decode() {
+			value = decoded.value;
+			op = decoded.op;
+			rs = decoded.rs;
+			rt = decoded.rt;
+			rd = decoded.rd;
+			sh = decoded.sh;
+			func = decoded.func;
+			target = decoded.target;
+			imm = decoded.imm;
+
+			operation = decoded.operation;
+			name = decoded.name;
+			format = decoded.format;
+			flags = decoded.flags;
+
+			size = decoded.size;
+			dstReg = decoded.dstReg;
 
 			mask = 0xFFFFFFFF;
 			branch = true;
 
-			// get memory access size
-			if (test(Mips.SIZEB))
-				size = 1;
-			else if (test(Mips.SIZEH))
-				size = 2;
-			else if (test(Mips.SIZEW))
-				size = 4;
-			else
-				size = 0;
-
 			// get nextPC
 			nextPC = registers[regNextPC] + 4;
 
-			// get dstReg
-			if (test(Mips.DSTRA))
-				dstReg = regRA;
-			else if (format == Mips.IFMT)
-				dstReg = rt;
-			else if (format == Mips.RFMT)
-				dstReg = rd;
-			else
-				dstReg = -1;
-
 			// get jtarget
 			if (format == Mips.RFMT)
 				jtarget = registers[rs];
@@ -710,11 +1294,6 @@ public final class Processor {
 			else
 				jtarget = -1;
 
-			// get imm
-			if (test(Mips.UNSIGNED)) {
-				imm &= 0xFFFF;
-			}
-
 			// get addr
 			addr = registers[rs] + imm;
 
@@ -862,7 +1441,7 @@ public final class Processor {
 				System.out.print("\n");
 		}
 
-		private void execute() throws MipsException {
+		private boolean execute() {
 			int value;
 			int preserved;
 
@@ -879,14 +1458,16 @@ public final class Processor {
 				registers[regHi] = (int) Lib.extract(dst, 32, 32);
 				break;
 			case Mips.DIV:
-				try {
-					registers[regLo] = (int) (src1 / src2);
-					registers[regHi] = (int) (src1 % src2);
-					if (registers[regLo] * src2 + registers[regHi] != src1)
-						throw new ArithmeticException();
+				if (src2 == 0) {
+					raiseTrap(exceptionOverflow);
+					return false;
 				}
-				catch (ArithmeticException e) {
-					throw new MipsException(exceptionOverflow);
+
+				registers[regLo] = (int) (src1 / src2);
+				registers[regHi] = (int) (src1 % src2);
+				if (registers[regLo] * src2 + registers[regHi] != src1) {
+					raiseTrap(exceptionOverflow);
+					return false;
 				}
 				break;
 
@@ -956,7 +1537,8 @@ public final class Processor {
 				break;
 
 			case Mips.SYSCALL:
-				throw new MipsException(exceptionSyscall);
+				raiseTrap(exceptionSyscall);
+				return false;
 
 			case Mips.LOAD:
 				value = readMem(addr, size);
@@ -997,6 +1579,8 @@ public final class Processor {
 
 			case Mips.SWL:
 				value = readMem(addr & ~0x3, 4);
+				if (trapPending)
+					return false;
 
 				// SWL shifts highest order byte into the addressed position
 				preserved = (3 - (addr & 0x3)) * 8;
@@ -1011,6 +1595,8 @@ public final class Processor {
 
 			case Mips.SWR:
 				value = readMem(addr & ~0x3, 4);
+				if (trapPending)
+					return false;
 
 				// SWR shifts the lowest order byte into the addressed position
 				preserved = (addr & 0x3) * 8;
@@ -1027,17 +1613,22 @@ public final class Processor {
 				System.err.println("Warning: encountered unimplemented inst");
 
 			case Mips.INVALID:
-				throw new MipsException(exceptionIllegalInstruction);
+				raiseTrap(exceptionIllegalInstruction);
+				return false;
 
 			default:
 				Lib.assertNotReached();
 			}
+
+			return !trapPending;
 		}
 
-		private void writeBack() throws MipsException {
-			// if instruction is signed, but carry bit !+ sign bit, throw
-			if (test(Mips.OVERFLOW) && Lib.test(dst, 31) != Lib.test(dst, 32))
-				throw new MipsException(exceptionOverflow);
+		private boolean writeBack() {
+			// if instruction is signed, but carry bit !+ sign bit, trap
+			if (test(Mips.OVERFLOW) && Lib.test(dst, 31) != Lib.test(dst, 32)) {
+				raiseTrap(exceptionOverflow);
+				return false;
+			}
 
 			if (test(Mips.DELAYEDLOAD))
 				delayedLoad(dstReg, (int) dst, mask);
@@ -1067,9 +1658,18 @@ public final class Processor {
 			if ((Lib.test(dbgDisassemble) && !Lib.test(dbgProcessor))
 					|| Lib.test(dbgFullDisassemble))
 				System.out.print("\n");
+
+			return true;
 		}
 
+		// the decoded block being executed, if any
+		DecodedBlock block = null;
+
+		int blockPC, blockIndex, blockKernelEntries;
+
 		// state used to execute a single instruction
+		DecodedInstruction decoded;
+
 		int value, op, rs, rt, rd, sh, func, target, imm;
 
 		int operation, format, flags;
@@ -1087,6 +1687,149 @@ public final class Processor {
 		boolean branch;
 	}
 
+	/**
+	 * Return the decoded instruction at the specified word of physical memory,
+	 * decoding it if it is not already cached.
+	 * 
+	 * @param ppn the physical page containing the instruction.
+	 * @param index the index of the instruction's word within the page.
+	 * @return the decoded instruction.
+	 */
+	private DecodedInstruction getDecoded(int ppn, int index) {
+		DecodedInstruction[] page = decodeCache[ppn];
+		if (page == null) {
+			page = new DecodedInstruction[pageSize / 4];
+			decodeCache[ppn] = page;
+		}
+
+		DecodedInstruction decoded = page[index];
+		if (decoded == null) {
+			decoded = new DecodedInstruction(loadWord(ppn * pageSize + index
+					* 4));
+			page[index] = decoded;
+		}
+
+		return decoded;
+	}
+
+	/**
+	 * A run of decoded instructions within one physical page, ending with a
+	 * control transfer and its delay slot, an instruction that always traps,
+	 * or the end of the page. Once a block is entered, the instructions that
+	 * follow the first are taken straight from the block rather than fetched
+	 * through address translation, for as long as the PC keeps advancing
+	 * sequentially, the kernel does not run, and the page is not modified.
+	 * 
+	 * <p>
+	 * A decoded block only saves the fetch: no code is generated for it, and
+	 * each of its instructions is still executed by <tt>Instruction</tt>.
+	 */
+	private class DecodedBlock {
+		DecodedBlock(int ppn, int index) {
+			this.ppn = ppn;
+			this.index = index;
+			this.version = pageVersions[ppn];
+
+			int length = 0;
+			for (int i = index; i < pageSize / 4; i++) {
+				DecodedInstruction decoded = getDecoded(ppn, i);
+				length++;
+
+				if (decoded.operation == Mips.SYSCALL
+						|| decoded.operation == Mips.UNIMPL
+						|| decoded.operation == Mips.INVALID)
+					break;
+
+				// include the delay slot, if it is on this page
+				if (Lib.test(Mips.BRANCH, decoded.flags)) {
+					if (i + 1 < pageSize / 4)
+						length++;
+					break;
+				}
+			}
+
+			instructions = new DecodedInstruction[length];
+			for (int i = 0; i < length; i++)
+				instructions[i] = getDecoded(ppn, index + i);
+		}
+
+		int ppn, index, version;
+
+		DecodedInstruction[] instructions;
+	}
+
+	/**
+	 * The parts of a decoded instruction that depend only on the instruction
+	 * word, and not on the state of the registers.
+	 */
+	private static class DecodedInstruction {
+		DecodedInstruction(int value) {
+			this.value = value;
+
+			op = Lib.extract(value, 26, 6);
+			rs = Lib.extract(value, 21, 5);
+			rt = Lib.extract(value, 16, 5);
+			rd = Lib.extract(value, 11, 5);
+			sh = Lib.extract(value, 6, 5);
+			func = Lib.extract(value, 0, 6);
+			target = Lib.extract(value, 0, 26);
+			imm = Lib.extend(value, 0, 16);
+
+			Mips info;
+			switch (op) {
+			case 0:
+				info = Mips.specialtable[func];
+				break;
+			case 1:
+				info = Mips.regimmtable[rt];
+				break;
+			default:
+				info = Mips.optable[op];
+				break;
+			}
+
+			operation = info.operation;
+			name = info.name;
+			format = info.format;
+			flags = info.flags;
+
+			// get memory access size
+			if (Lib.test(Mips.SIZEB, flags))
+				size = 1;
+			else if (Lib.test(Mips.SIZEH, flags))
+				size = 2;
+			else if (Lib.test(Mips.SIZEW, flags))
+				size = 4;
+			else
+				size = 0;
+
+			// get dstReg
+			if (Lib.test(Mips.DSTRA, flags))
+				dstReg = regRA;
+			else if (format == Mips.IFMT)
+				dstReg = rt;
+			else if (format == Mips.RFMT)
+				dstReg = rd;
+			else
+				dstReg = -1;
+
+			// get imm
+			if (Lib.test(Mips.UNSIGNED, flags))
+				imm &= 0xFFFF;
+		}
+
+		int value, op, rs, rt, rd, sh, func, target, imm;
+
+		int operation, format, flags;
+
+		String name;
+
+		int size, dstReg;
+
+		/** The number of times this was fetched outside a decoded block. */
+		int fetches = 0;
+	}
+
 	private static class Mips {
 		Mips() {
 		}
@@ -0,0 +1,158 @@
+// PART OF THE MACHINE SIMULATION. DO NOT CHANGE.
+
+package nachos.machine;
+
+import java.util.Arrays;
+
+/**
+ * Execution counters kept by the <tt>Processor</tt> when the
+ * <tt>Processor.profile</tt> configuration key is set.
+ *
+ * <p>
+ * All counters are indexed by physical address, so a kernel can attribute
+ * them to a process by walking its page table. The kernel must reset a page's
+ * counters with <tt>clearPage()</tt> whenever the page is freed or evicted;
+ * otherwise they are charged to its next owner. For each instruction word, the
+ * profiler counts how many times it was executed and how many times control
+ * arrived at it from anywhere other than the preceding word; words with a
+ * nonzero entry count are basic block leaders. For each physical page, it
+ * counts user loads and stores.
+ *
+ * <p>
+ * A page's counters are allocated the first time an instruction is fetched
+ * from it, so counting is just an array increment.
+ */
+public final class Profiler {
+	/**
+	 * Allocate a new profiler.
+	 *
+	 * @param numPhysPages the number of physical pages to keep counters for.
+	 */
+	Profiler(int numPhysPages) {
+		this.numPhysPages = numPhysPages;
+
+		instructions = new long[numPhysPages][];
+		blockEntries = new long[numPhysPages][];
+		loads = new long[numPhysPages];
+		stores = new long[numPhysPages];
+	}
+
+	/**
+	 * Count the execution of the instruction at the specified address.
+	 *
+	 * @param paddr the physical address of the instruction.
+	 * @param vaddr the virtual address of the instruction.
+	 */
+	void countInstruction(int paddr, int vaddr) {
+		int ppn = paddr / Processor.pageSize;
+		int index = (paddr % Processor.pageSize) / 4;
+
+		long[] counts = instructions[ppn];
+		if (counts == null) {
+			counts = new long[wordsPerPage];
+			instructions[ppn] = counts;
+			blockEntries[ppn] = new long[wordsPerPage];
+		}
+
+		counts[index]++;
+		if (vaddr != nextVaddr)
+			blockEntries[ppn][index]++;
+
+		nextVaddr = vaddr + 4;
+	}
+
+	/**
+	 * Count a user load from the specified address.
+	 *
+	 * @param paddr the physical address loaded from.
+	 */
+	void countLoad(int paddr) {
+		loads[paddr / Processor.pageSize]++;
+	}
+
+	/**
+	 * Count a user store to the specified address.
+	 *
+	 * @param paddr the physical address stored to.
+	 */
+	void countStore(int paddr) {
+		stores[paddr / Processor.pageSize]++;
+	}
+
+	/**
+	 * Return the number of times the instruction at the specified physical
+	 * address has been executed.
+	 *
+	 * @param paddr a word-aligned physical address.
+	 * @return the execution count.
+	 */
+	public long getInstructionCount(int paddr) {
+		long[] counts = instructions[paddr / Processor.pageSize];
+		return counts == null ? 0 : counts[(paddr % Processor.pageSize) / 4];
+	}
+
+	/**
+	 * Return the number of times control entered the instruction at the
+	 * specified physical address other than by falling through from the
+	 * previous word.
+	 *
+	 * @param paddr a word-aligned physical address.
+	 * @return the block entry count.
+	 */
+	public long getBlockEntryCount(int paddr) {
+		long[] counts = blockEntries[paddr / Processor.pageSize];
+		return counts == null ? 0 : counts[(paddr % Processor.pageSize) / 4];
+	}
+
+	/**
+	 * Return the number of user loads from the specified physical page.
+	 *
+	 * @param ppn the physical page number.
+	 * @return the load count.
+	 */
+	public long getLoadCount(int ppn) {
+		return loads[ppn];
+	}
+
+	/**
+	 * Return the number of user stores to the specified physical page.
+	 *
+	 * @param ppn the physical page number.
+	 * @return the store count.
+	 */
+	public long getStoreCount(int ppn) {
+		return stores[ppn];
+	}
+
+	/**
+	 * Reset the counters for a physical page, when it is freed or evicted
+	 * and before it is given to another process.
+	 *
+	 * @param ppn the physical page number.
+	 */
+	public void clearPage(int ppn) {
+		Lib.assertTrue(ppn >= 0 && ppn < numPhysPages);
+
+		if (instructions[ppn] != null) {
+			Arrays.fill(instructions[ppn], 0);
+			Arrays.fill(blockEntries[ppn], 0);
+		}
+		loads[ppn] = 0;
+		stores[ppn] = 0;
+	}
+
+	private int numPhysPages;
+
+	private long[][] instructions;
+
+	private long[][] blockEntries;
+
+	private long[] loads;
+
+	private long[] stores;
+
+	/** The address that would follow the last instruction sequentially. */
+	private int nextVaddr = -1;
+
+	private static final int wordsPerPage = Processor.pageSize / 4;
+}
@@ -0,0 +1,278 @@
+// PART OF THE MACHINE SIMULATION. DO NOT CHANGE.
+
+package nachos.machine;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * A saved image of the simulated machine, stored in a memory-mapped file.
+ *
+ * <p>
+ * An image holds two kinds of state. The machine state (physical memory,
+ * every <tt>Stats</tt> counter, and the timer) is captured by <tt>save()</tt> and put back
+ * by <tt>restore()</tt>. The kernel state (a process's page table, its initial
+ * registers, and the free-page list) is stored in the public fields, which
+ * the kernel fills in before saving and reads back after restoring.
+ *
+ * <p>
+ * Simulated time resumes from the value it had when the image was saved. Any
+ * interrupts pending at the time of the restore are shifted by the same
+ * amount, so they stay the same distance in the future.
+ *
+ * @see nachos.machine.Machine#getSnapshotFile
+ * @see nachos.machine.Machine#getRestoreFile
+ */
+public final class Snapshot {
+	/**
+	 * Allocate a new, empty snapshot.
+	 */
+	public Snapshot() {
+	}
+
+	/**
+	 * Write this snapshot, together with the current machine state, to the
+	 * specified file.
+	 *
+	 * @param file the file to write.
+	 */
+	public void save(File file) {
+		Lib.assertTrue(pageTable != null && freePages != null
+				&& programName != null);
+
+		Processor processor = Machine.processor();
+		int numPhysPages = processor.getNumPhysPages();
+		byte[] name = programName.getBytes(StandardCharsets.UTF_8);
+
+		Stats stats = Machine.stats();
+		long size = headerSize + 4 + 16L * stats.tlbHitsByASID.length + 4
+				+ 12L * stats.readiedByCore.length + 4L * registers.length + 4
+				+ (long) entrySize * pageTable.length + 4 + 4L
+				* freePages.length + 4 + name.length + (long) numPhysPages
+				* Processor.pageSize;
+
+		boolean intStatus = Machine.interrupt().disable();
+
+		try (FileChannel channel = FileChannel.open(file.toPath(),
+				StandardOpenOption.CREATE, StandardOpenOption.READ,
+				StandardOpenOption.WRITE,
+				StandardOpenOption.TRUNCATE_EXISTING)) {
+			MappedByteBuffer image = channel.map(
+					FileChannel.MapMode.READ_WRITE, 0, size);
+			image.order(ByteOrder.LITTLE_ENDIAN);
+
+			image.putInt(magic);
+			image.putInt(numPhysPages);
+
+			image.putLong(stats.totalTicks);
+			image.putLong(stats.kernelTicks);
+			image.putLong(stats.userTicks);
+			image.putLong(stats.idleTicks);
+			image.putLong(stats.numTLBHits);
+			int[] counters = getCounters(stats);
+			for (int i = 0; i < counters.length; i++)
+				image.putInt(counters[i]);
+			image.putLong(Machine.timer().getLastTimerInterrupt());
+
+			image.putInt(stats.tlbHitsByASID.length);
+			for (int i = 0; i < stats.tlbHitsByASID.length; i++) {
+				image.putLong(stats.tlbHitsByASID[i]);
+				image.putLong(stats.tlbMissesByASID[i]);
+			}
+
+			image.putInt(stats.readiedByCore.length);
+			for (int i = 0; i < stats.readiedByCore.length; i++) {
+				image.putLong(stats.readiedByCore[i]);
+				image.putInt(stats.maxRunQueueByCore[i]);
+			}
+
+			for (int i = 0; i < registers.length; i++)
+				image.putInt(registers[i]);
+
+			image.putInt(pageTable.length);
+			for (int i = 0; i < pageTable.length; i++) {
+				TranslationEntry entry = pageTable[i];
+				image.putInt(entry.vpn);
+				image.putInt(entry.ppn);
+				image.putInt((entry.valid ? flagValid : 0)
+						| (entry.readOnly ? flagReadOnly : 0)
+						| (entry.used ? flagUsed : 0)
+						| (entry.dirty ? flagDirty : 0));
+			}
+
+			image.putInt(freePages.length);
+			for (int i = 0; i < freePages.length; i++)
+				image.putInt(freePages[i]);
+
+			image.putInt(name.length);
+			image.put(name);
+
+			byte[] page = new byte[Processor.pageSize];
+			for (int ppn = 0; ppn < numPhysPages; ppn++) {
+				processor.readPhysMemory(ppn * Processor.pageSize, page, 0,
+						page.length);
+				image.put(page);
+			}
+
+			image.force();
+		}
+		catch (IOException e) {
+			Lib.assertNotReached("could not write snapshot " + file + ": " + e);
+		}
+
+		Machine.interrupt().restore(intStatus);
+	}
+
+	/**
+	 * Read a snapshot from the specified file, and restore the machine state
+	 * it holds. The caller is responsible for restoring the kernel state from
+	 * the returned object.
+	 *
+	 * @param file the file to read.
+	 * @return the snapshot.
+	 */
+	public static Snapshot restore(File file) {
+		Snapshot snapshot = new Snapshot();
+		Processor processor = Machine.processor();
+
+		boolean intStatus = Machine.interrupt().disable();
+
+		try (FileChannel channel = FileChannel.open(file.toPath(),
+				StandardOpenOption.READ)) {
+			MappedByteBuffer image = channel.map(FileChannel.MapMode.READ_ONLY,
+					0, channel.size());
+			image.order(ByteOrder.LITTLE_ENDIAN);
+
+			Lib.assertTrue(image.getInt() == magic, file
+					+ " is not a Nachos snapshot");
+			int numPhysPages = image.getInt();
+			Lib.assertTrue(numPhysPages == processor.getNumPhysPages(),
+					"snapshot was taken with " + numPhysPages
+							+ " physical pages");
+
+			Stats stats = Machine.stats();
+			long totalTicks = image.getLong();
+			Machine.interrupt().shiftPending(totalTicks - stats.totalTicks);
+			stats.totalTicks = totalTicks;
+			stats.kernelTicks = image.getLong();
+			stats.userTicks = image.getLong();
+			stats.idleTicks = image.getLong();
+			stats.numTLBHits = image.getLong();
+			int[] counters = new int[numCounters];
+			for (int i = 0; i < counters.length; i++)
+				counters[i] = image.getInt();
+			setCounters(stats, counters);
+			Machine.timer().setLastTimerInterrupt(image.getLong());
+
+			int numASIDs = image.getInt();
+			stats.tlbHitsByASID = new long[numASIDs];
+			stats.tlbMissesByASID = new long[numASIDs];
+			for (int i = 0; i < numASIDs; i++) {
+				stats.tlbHitsByASID[i] = image.getLong();
+				stats.tlbMissesByASID[i] = image.getLong();
+			}
+
+			int numCores = image.getInt();
+			stats.readiedByCore = new long[numCores];
+			stats.maxRunQueueByCore = new int[numCores];
+			for (int i = 0; i < numCores; i++) {
+				stats.readiedByCore[i] = image.getLong();
+				stats.maxRunQueueByCore[i] = image.getInt();
+			}
+
+			for (int i = 0; i < snapshot.registers.length; i++)
+				snapshot.registers[i] = image.getInt();
+
+			snapshot.pageTable = new TranslationEntry[image.getInt()];
+			for (int i = 0; i < snapshot.pageTable.length; i++) {
+				int vpn = image.getInt();
+				int ppn = image.getInt();
+				int flags = image.getInt();
+				snapshot.pageTable[i] = new TranslationEntry(vpn, ppn,
+						(flags & flagValid) != 0, (flags & flagReadOnly) != 0,
+						(flags & flagUsed) != 0, (flags & flagDirty) != 0);
+			}
+
+			snapshot.freePages = new int[image.getInt()];
+			for (int i = 0; i < snapshot.freePages.length; i++)
+				snapshot.freePages[i] = image.getInt();
+
+			byte[] name = new byte[image.getInt()];
+			image.get(name);
+			snapshot.programName = new String(name, StandardCharsets.UTF_8);
+
+			byte[] page = new byte[Processor.pageSize];
+			for (int ppn = 0; ppn < numPhysPages; ppn++) {
+				image.get(page);
+				processor.writePhysMemory(ppn * Processor.pageSize, page, 0,
+						page.length);
+			}
+		}
+		catch (IOException e) {
+			Lib.assertNotReached("could not read snapshot " + file + ": " + e);
+		}
+
+		Machine.interrupt().restore(intStatus);
+
+		return snapshot;
+	}
+
+	private static int[] getCounters(Stats stats) {
+		return new int[] { stats.numDiskReads, stats.numDiskWrites,
+				stats.numConsoleReads, stats.numConsoleWrites,
+				stats.numPageFaults, stats.numTLBMisses, stats.numCOFFReads,
+				stats.numSwapReads, stats.numSwapWrites, stats.numSwapSkips,
+				stats.numPacketsSent, stats.numPacketsReceived,
+				stats.numTCBPoolHits, stats.numTCBPoolMisses,
+				stats.numDeadlineMisses };
+	}
+
+	private static void setCounters(Stats stats, int[] counters) {
+		stats.numDiskReads = counters[0];
+		stats.numDiskWrites = counters[1];
+		stats.numConsoleReads = counters[2];
+		stats.numConsoleWrites = counters[3];
+		stats.numPageFaults = counters[4];
+		stats.numTLBMisses = counters[5];
+		stats.numCOFFReads = counters[6];
+		stats.numSwapReads = counters[7];
+		stats.numSwapWrites = counters[8];
+		stats.numSwapSkips = counters[9];
+		stats.numPacketsSent = counters[10];
+		stats.numPacketsReceived = counters[11];
+		stats.numTCBPoolHits = counters[12];
+		stats.numTCBPoolMisses = counters[13];
+		stats.numDeadlineMisses = counters[14];
+	}
+
+	/**
+	 * The page table of the process being saved. Every entry's <tt>vpn</tt>,
+	 * <tt>ppn</tt> and flag bits are stored; other fields are not.
+	 */
+	public TranslationEntry[] pageTable;
+
+	/** The physical pages that are not allocated to any process. */
+	public int[] freePages;
+
+	/** The user registers the process should start with. */
+	public int[] registers = new int[Processor.numUserRegisters];
+
+	/** The name of the executable the process is running. */
+	public String programName;
+
+	private static final int magic = 0x324E534E; // "NSN2"
+
+	private static final int numCounters = 15;
+
+	private static final int headerSize = 4 + 4 + 8 * 5 + 4 * numCounters + 8;
+
+	private static final int entrySize = 12;
+
+	private static final int flagValid = 1, flagReadOnly = 2, flagUsed = 4,
+			flagDirty = 8;
+}
@@ -4,6 +4,8 @@ package nachos.machine;
 
 import nachos.machine.*;
 
+import java.util.Arrays;
+
 /**
  * An object that maintains Nachos runtime statistics.
  */
@@ -19,19 +21,84 @@ public final class Stats {
 	 */
 	public void print() {
 		System.out.println("Ticks: total " + totalTicks + ", kernel "
-				+ kernelTicks + ", user " + userTicks);
+				+ kernelTicks + ", user " + userTicks
+				+ (idleTicks > 0 ? ", idle " + idleTicks : ""));
 		System.out.println("Disk I/O: reads " + numDiskReads + ", writes "
 				+ numDiskWrites);
 		System.out.println("Console I/O: reads " + numConsoleReads
 				+ ", writes " + numConsoleWrites);
 		System.out.println("Paging: page faults " + numPageFaults
 				+ ", TLB misses " + numTLBMisses);
+		if (numTLBHits > 0) {
+			System.out.println("TLB: hits " + numTLBHits + ", misses "
+					+ numTLBMisses + ", hit rate "
+					+ hitRate(numTLBHits, numTLBMisses));
+			for (int i = 0; i < tlbHitsByASID.length; i++) {
+				if (tlbHitsByASID[i] + tlbMissesByASID[i] > 0)
+					System.out.println("  ASID " + i + ": hits "
+							+ tlbHitsByASID[i] + ", misses "
+							+ tlbMissesByASID[i] + ", hit rate "
+							+ hitRate(tlbHitsByASID[i], tlbMissesByASID[i]));
+			}
+		}
 		System.out.println("Swap: COFF reads " + numCOFFReads
 				+ ", swap reads " + numSwapReads
 			        + ", swap writes " + numSwapWrites
 			        + ", swap skips " + numSwapSkips);
 		System.out.println("Network I/O: received " + numPacketsReceived
 				+ ", sent " + numPacketsSent);
+		if (numTCBPoolHits + numTCBPoolMisses > 0)
+			System.out.println("TCB pool: hits " + numTCBPoolHits
+					+ ", misses " + numTCBPoolMisses);
+		if (numDeadlineMisses > 0)
+			System.out.println("Deadlines: missed " + numDeadlineMisses);
+		for (int i = 0; i < readiedByCore.length; i++)
+			System.out.println("Core " + i + ": readied " + readiedByCore[i]
+					+ ", longest run queue " + maxRunQueueByCore[i]);
+	}
+
+	/**
+	 * Count a TLB lookup, both in the totals and for the address space that
+	 * performed it.
+	 * 
+	 * @param asid the address space identifier of the running program.
+	 * @param hit <tt>true</tt> if the lookup found a matching entry.
+	 */
+	public void recordTLBAccess(int asid, boolean hit) {
+		if (asid >= tlbHitsByASID.length) {
+			int length = Math.max(asid + 1, tlbHitsByASID.length * 2);
+			tlbHitsByASID = Arrays.copyOf(tlbHitsByASID, length);
+			tlbMissesByASID = Arrays.copyOf(tlbMissesByASID, length);
+		}
+
+		if (hit) {
+			numTLBHits++;
+			tlbHitsByASID[asid]++;
+		}
+		else {
+			numTLBMisses++;
+			tlbMissesByASID[asid]++;
+		}
+	}
+
+	/**
+	 * Count a thread added to a simulated core's run queue.
+	 * 
+	 * @param core the core whose run queue the thread was added to.
+	 * @param length the length of that run queue, including the thread.
+	 */
+	public void recordCoreReady(int core, int length) {
+		if (core >= readiedByCore.length) {
+			readiedByCore = Arrays.copyOf(readiedByCore, core + 1);
+			maxRunQueueByCore = Arrays.copyOf(maxRunQueueByCore, core + 1);
+		}
+
+		readiedByCore[core]++;
+		maxRunQueueByCore[core] = Math.max(maxRunQueueByCore[core], length);
+	}
+
+	private static String hitRate(long hits, long misses) {
+		return (hits * 1000 / (hits + misses)) / 10.0 + "%";
 	}
 
 	/**
@@ -49,6 +116,12 @@ public final class Stats {
 	 */
 	public long userTicks = 0;
 
+	/**
+	 * The total amount of simulated time that was skipped by
+	 * <tt>Interrupt.idle()</tt> while no thread was ready to run.
+	 */
+	public long idleTicks = 0;
+
 	/** The total number of sectors Nachos has read from the simulated disk. */
 	public int numDiskReads = 0;
 
@@ -67,6 +140,15 @@ public final class Stats {
 	/** The total number of TLB misses that have occurred. */
 	public int numTLBMisses = 0;
 
+	/** The total number of translations satisfied by the TLB. */
+	public long numTLBHits = 0;
+
+	/** TLB hits, indexed by address space identifier. */
+	public long[] tlbHitsByASID = new long[0];
+
+	/** TLB misses, indexed by address space identifier. */
+	public long[] tlbMissesByASID = new long[0];
+
         /** The total number of pages read from COFF files. */
         public int numCOFFReads = 0;
     
@@ -85,6 +167,32 @@ public final class Stats {
 	/** The total number of packets Nachos has received from the network. */
 	public int numPacketsReceived = 0;
 
+	/**
+	 * The number of TCBs started on a pooled Java thread.
+	 */
+	public int numTCBPoolHits = 0;
+
+	/**
+	 * The number of TCBs that needed a new Java thread while pooling was
+	 * enabled.
+	 */
+	public int numTCBPoolMisses = 0;
+
+	/**
+	 * The number of jobs of periodic threads that finished after their
+	 * deadline.
+	 */
+	public int numDeadlineMisses = 0;
+
+	/**
+	 * Threads added to each simulated core's run queue, when
+	 * <tt>KThread.cores</tt> is set.
+	 */
+	public long[] readiedByCore = new long[0];
+
+	/** The longest run queue seen on each simulated core. */
+	public int[] maxRunQueueByCore = new int[0];
+
 	/**
 	 * The amount to advance simulated time after each user instructions is
 	 * executed.
@@ -5,7 +5,10 @@ package nachos.machine;
 import nachos.security.*;
 import nachos.threads.KThread;
 
+import java.util.ArrayDeque;
 import java.util.Vector;
+import java.util.concurrent.locks.LockSupport;
+import java.lang.reflect.Method;
 import java.security.PrivilegedAction;
 
 /**
@@ -21,6 +24,23 @@ import java.security.PrivilegedAction;
  * <p>
  * Do not use the <i>synchronized</i> keyword <b>anywhere</b> in your code. It's
  * against the rules, <i>and</i> it can easily deadlock nachos.
+ * 
+ * <p>
+ * The <tt>TCB.backend</tt> configuration key selects how control is handed
+ * from one Java thread to the next. <tt>monitor</tt> (the default) waits and
+ * notifies on the TCB's monitor. <tt>park</tt> uses
+ * <tt>LockSupport.park()</tt> and <tt>unpark()</tt>, which avoids the monitor
+ * handshake on every context switch. <tt>virtual</tt> parks the same way, but
+ * runs each TCB after the first on a virtual thread, so that thousands of
+ * TCBs do not need thousands of host threads; it needs Java 21, and falls back
+ * to <tt>park</tt> on older JVMs. <tt>TCB.maxThreads</tt> sets the maximum
+ * number of running TCBs, or 0 for no limit; it defaults to
+ * <tt>maxThreads</tt>, or to no limit for the <tt>virtual</tt> backend.
+ * 
+ * <p>
+ * If <tt>TCB.poolSize</tt> is set, the Java threads of destroyed TCBs are
+ * kept, up to that many, and reused by later calls to <tt>start()</tt>, so
+ * that forking short-lived threads does not create a host thread each time.
  */
 @SuppressWarnings("removal")
 public final class TCB {
@@ -40,6 +60,29 @@ public final class TCB {
 	public static void givePrivilege(Privilege privilege) {
 		TCB.privilege = privilege;
 		privilege.tcb = new TCBPrivilege();
+
+		String backend = Config.getString("TCB.backend", "monitor");
+		if (backend.equals("virtual")) {
+			parking = true;
+			virtualThreads = findVirtualThreads();
+			if (!virtualThreads)
+				System.out.println("TCB: virtual threads are not available, "
+						+ "using park");
+		}
+		else if (backend.equals("park")) {
+			parking = true;
+		}
+		else {
+			Lib.assertTrue(backend.equals("monitor"), "unknown TCB.backend "
+					+ backend);
+		}
+
+		threadLimit = Config.getInteger("TCB.maxThreads",
+				virtualThreads ? 0 : maxThreads);
+		Lib.assertTrue(threadLimit >= 0);
+
+		poolSize = Config.getInteger("TCB.poolSize", 0);
+		Lib.assertTrue(poolSize >= 0);
 	}
 
 	/**
@@ -69,7 +112,7 @@ public final class TCB {
 		 * Make sure there aren't too many running TCBs already. This limitation
 		 * exists in an effort to prevent wild thread usage.
 		 */
-		Lib.assertTrue(runningThreads.size() < maxThreads);
+		Lib.assertTrue(threadLimit == 0 || runningThreads.size() < threadLimit);
 
 		isFirstTCB = (currentTCB == null);
 
@@ -92,31 +135,38 @@ public final class TCB {
 
 		if (!isFirstTCB) {
 			/*
-			 * If this is not the first TCB, we have to make a new Java thread
-			 * to run it. Creating Java threads is a privileged operation.
+			 * If this is not the first TCB, we need a Java thread to run it.
+			 * If the pool holds the thread of a destroyed TCB, we reuse it;
+			 * otherwise we have to make a new one. Creating Java threads is a
+			 * privileged operation.
 			 */
-			tcbTarget = new Runnable() {
-				public void run() {
-					threadroot();
-				}
-			};
-
-			privilege.doPrivileged(new Runnable() {
-				public void run() {
-					javaThread = new Thread(tcbTarget);
-				}
-			});
+			final Worker worker = takeWorker();
+
+			if (worker == null) {
+				privilege.doPrivileged(new Runnable() {
+					public void run() {
+						javaThread = newThread(new Worker(TCB.this));
+					}
+				});
+			}
+			else {
+				javaThread = worker.thread;
+			}
 
 			/*
 			 * The Java thread hasn't yet started, but we need to get it
 			 * blocking in yield(). We do this by temporarily turning off the
-			 * current TCB, starting the new Java thread, and waiting for it to
-			 * wake us up from threadroot(). Once the new TCB wakes us up, it's
-			 * safe to context switch to the new TCB.
+			 * current TCB, starting the new Java thread (or handing this TCB
+			 * to the pooled one), and waiting for it to wake us up from
+			 * threadroot(). Once the new TCB wakes us up, it's safe to context
+			 * switch to the new TCB.
 			 */
 			currentTCB.running = false;
 
-			this.javaThread.start();
+			if (worker == null)
+				this.javaThread.start();
+			else
+				worker.assign(this);
 			currentTCB.waitForInterrupt();
 		}
 		else {
@@ -207,6 +257,30 @@ public final class TCB {
 		privilege.exit(0);
 	}
 
+	/**
+	 * Destroy all TCBs without exiting the JVM. Every TCB other than the
+	 * current one is woken up and terminates the same way as after
+	 * <tt>destroy()</tt>; the caller is responsible for terminating the
+	 * current thread. Used by <tt>BatchRunner</tt> in place of
+	 * <tt>System.exit()</tt>.
+	 */
+	static void stopAll() {
+		stopping = true;
+
+		synchronized (pool) {
+			for (Worker worker : pool)
+				LockSupport.unpark(worker.thread);
+			pool.clear();
+		}
+
+		TCB[] tcbs = runningThreads.toArray(new TCB[0]);
+		for (int i = 0; i < tcbs.length; i++) {
+			tcbs[i].done = true;
+			if (tcbs[i].javaThread != Thread.currentThread())
+				tcbs[i].interrupt();
+		}
+	}
+
 	/**
 	 * Test if the current JVM thread belongs to a Nachos TCB. The AWT event
 	 * dispatcher is an example of a non-Nachos thread.
@@ -257,7 +331,7 @@ public final class TCB {
 			}
 
 			runningThreads.removeElement(this);
-			if (runningThreads.isEmpty())
+			if (runningThreads.isEmpty() && !stopping)
 				privilege.exit(0);
 		}
 		catch (Throwable e) {
@@ -299,7 +373,17 @@ public final class TCB {
 	 * from this TCB to another. We don't rely on <tt>currentTCB</tt>, since it
 	 * is updated by <tt>contextSwitch()</tt> before we get called.
 	 */
-	private synchronized void waitForInterrupt() {
+	private void waitForInterrupt() {
+		if (parking) {
+			while (!running)
+				LockSupport.park(this);
+		}
+		else {
+			waitOnMonitor();
+		}
+	}
+
+	private synchronized void waitOnMonitor() {
 		while (!running) {
 			try {
 				wait();
@@ -315,11 +399,91 @@ public final class TCB {
 	 * starting and destroying TCBs, as well as in context switching to this
 	 * TCB.
 	 */
-	private synchronized void interrupt() {
+	private void interrupt() {
+		if (parking) {
+			running = true;
+			LockSupport.unpark(javaThread);
+		}
+		else {
+			notifyMonitor();
+		}
+	}
+
+	private synchronized void notifyMonitor() {
 		running = true;
 		notify();
 	}
 
+	/**
+	 * Take a Java thread from the pool, if pooling is enabled.
+	 * 
+	 * @return an idle worker, or <tt>null</tt> if a new thread is needed.
+	 */
+	private static Worker takeWorker() {
+		if (poolSize == 0)
+			return null;
+
+		Worker worker;
+		synchronized (pool) {
+			worker = pool.poll();
+		}
+
+		if (worker != null)
+			privilege.stats.numTCBPoolHits++;
+		else
+			privilege.stats.numTCBPoolMisses++;
+
+		return worker;
+	}
+
+	/**
+	 * Return the Java thread of a destroyed TCB to the pool.
+	 * 
+	 * @param worker the worker whose TCB was destroyed.
+	 * @return <tt>true</tt> if the worker was pooled, or <tt>false</tt> if
+	 * its thread should exit.
+	 */
+	private static boolean releaseWorker(Worker worker) {
+		synchronized (pool) {
+			if (stopping || pool.size() >= poolSize)
+				return false;
+
+			pool.push(worker);
+			return true;
+		}
+	}
+
+	private static Thread newThread(Runnable target) {
+		if (!virtualThreads)
+			return new Thread(target);
+
+		try {
+			return (Thread) unstarted.invoke(virtualBuilder, target);
+		}
+		catch (Exception e) {
+			Lib.assertNotReached("could not create virtual thread: " + e);
+			return null;
+		}
+	}
+
+	/**
+	 * Look up <tt>Thread.ofVirtual().unstarted()</tt>, which is only present
+	 * in Java 21 and later.
+	 * 
+	 * @return <tt>true</tt> if virtual threads are available.
+	 */
+	private static boolean findVirtualThreads() {
+		try {
+			virtualBuilder = Thread.class.getMethod("ofVirtual").invoke(null);
+			unstarted = Class.forName("java.lang.Thread$Builder").getMethod(
+					"unstarted", Runnable.class);
+			return true;
+		}
+		catch (Exception e) {
+			return false;
+		}
+	}
+
 	private void associateThread(KThread thread) {
 		// make sure AutoGrader.runningThread() gets called only once per
 		// context switch
@@ -342,11 +506,34 @@ public final class TCB {
 	}
 
 	/**
-	 * The maximum number of started, non-destroyed TCB's that can be in
-	 * existence.
+	 * The default maximum number of started, non-destroyed TCB's that can be
+	 * in existence.
 	 */
 	public static final int maxThreads = 250;
 
+	/**
+	 * The maximum number of started, non-destroyed TCB's, or 0 for no limit.
+	 */
+	private static int threadLimit = maxThreads;
+
+	/** <tt>true</tt> to hand off control with <tt>park()</tt>. */
+	private static boolean parking = false;
+
+	/** <tt>true</tt> to run TCBs on virtual threads. */
+	private static boolean virtualThreads = false;
+
+	/**
+	 * The maximum number of idle Java threads kept for reuse, set by
+	 * <tt>TCB.poolSize</tt>. Pooling is disabled by default.
+	 */
+	private static int poolSize = 0;
+
+	private static final ArrayDeque<Worker> pool = new ArrayDeque<Worker>();
+
+	private static Object virtualBuilder;
+
+	private static Method unstarted;
+
 	/**
 	 * A reference to the currently running TCB. It is initialized to
 	 * <tt>null</tt> when the <tt>TCB</tt> class is loaded, and then the first
@@ -369,7 +556,7 @@ public final class TCB {
 	 * each TCB object. TCB objects are removed only in each of the
 	 * <tt>catch</tt> clauses of <tt>threadroot()</tt>, one of which is always
 	 * invoked on thread termination. The maximum number of threads in
-	 * <tt>runningThreads</tt> is limited to <tt>maxThreads</tt> by
+	 * <tt>runningThreads</tt> is limited to <tt>threadLimit</tt> by
 	 * <tt>start(Runnable)</tt>. If <tt>threadroot()</tt> drops the number of
 	 * TCB objects in <tt>runningThreads</tt> to zero, Nachos exits, so once the
 	 * first TCB is created, this vector is basically never empty.
@@ -380,6 +567,12 @@ public final class TCB {
 
 	private static KThread toBeDestroyed = null;
 
+	/**
+	 * Set by <tt>stopAll()</tt>, so that the TCBs it stops do not exit Nachos
+	 * again as the last of them terminates.
+	 */
+	private static volatile boolean stopping = false;
+
 	/**
 	 * <tt>true</tt> if and only if this TCB is the first TCB to start, the one
 	 * started in <tt>Machine.main(String[])</tt>. Initialized by
@@ -404,7 +597,7 @@ public final class TCB {
 	 * TCB, this is temporarily true for a thread other than that of the current
 	 * TCB.
 	 */
-	private boolean running = false;
+	private volatile boolean running = false;
 
 	/**
 	 * Set to <tt>true</tt> by <tt>destroy()</tt>, so that when
@@ -419,7 +612,43 @@ public final class TCB {
 
 	private Runnable target;
 
-	private Runnable tcbTarget;
+	/**
+	 * The body of every Java thread other than the first. It runs a TCB until
+	 * that TCB is destroyed, and then, if there is room in the pool, waits
+	 * there to run the TCB of a later <tt>start()</tt>.
+	 */
+	private static class Worker implements Runnable {
+		Worker(TCB tcb) {
+			next = tcb;
+		}
+
+		public void run() {
+			thread = Thread.currentThread();
+			TCB tcb = next;
+
+			while (true) {
+				next = null;
+				tcb.threadroot();
+
+				if (!releaseWorker(this))
+					return;
+
+				while ((tcb = next) == null && !stopping)
+					LockSupport.park(this);
+				if (tcb == null)
+					return;
+			}
+		}
+
+		void assign(TCB tcb) {
+			next = tcb;
+			LockSupport.unpark(thread);
+		}
+
+		volatile Thread thread;
+
+		private volatile TCB next;
+	}
 
 	private static class TCBPrivilege implements Privilege.TCBPrivilege {
 		public void associateThread(KThread thread) {
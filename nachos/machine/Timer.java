@@ -38,7 +38,49 @@ public final class Timer {
 			}
 		};
 
-		scheduleInterrupt();
+		tickless = Config.getBoolean("Timer.tickless", false);
+		if (!tickless)
+			scheduleInterrupt();
+	}
+
+	/**
+	 * Test whether this timer is tickless. A tickless timer does not interrupt
+	 * periodically; it only interrupts at the times requested through
+	 * <tt>armInterrupt()</tt>.
+	 * 
+	 * @return <tt>true</tt> if the <tt>Timer.tickless</tt> configuration key
+	 * is set.
+	 */
+	public boolean isTickless() {
+		return tickless;
+	}
+
+	/**
+	 * Ask for a timer interrupt at or after the specified time. A periodic
+	 * timer ignores this, since it will interrupt within about 500 ticks
+	 * anyway. A tickless timer schedules an interrupt for that time unless one
+	 * is already due no later than it.
+	 * 
+	 * @param time the time, in ticks since Nachos started, at which the
+	 * interrupt handler is needed.
+	 */
+	public void armInterrupt(long time) {
+		if (!tickless || time >= armedTime)
+			return;
+
+		final long when = Math.max(time, getTime() + 1);
+		armedTime = when;
+
+		// an interrupt superseded by an earlier one is ignored when it fires
+		privilege.interrupt.schedule(when - getTime(), "timer",
+				new Runnable() {
+					public void run() {
+						if (armedTime == when) {
+							armedTime = Long.MAX_VALUE;
+							timerInterrupt();
+						}
+					}
+				});
 	}
 
 	/**
@@ -60,8 +102,17 @@ public final class Timer {
 		return privilege.stats.totalTicks;
 	}
 
+	long getLastTimerInterrupt() {
+		return lastTimerInterrupt;
+	}
+
+	void setLastTimerInterrupt(long time) {
+		lastTimerInterrupt = time;
+	}
+
 	private void timerInterrupt() {
-		scheduleInterrupt();
+		if (!tickless)
+			scheduleInterrupt();
 		scheduleAutoGraderInterrupt();
 
 		lastTimerInterrupt = getTime();
@@ -83,6 +134,11 @@ public final class Timer {
 
 	private long lastTimerInterrupt;
 
+	private boolean tickless;
+
+	/** The time of the next armed interrupt, in tickless mode. */
+	private long armedTime = Long.MAX_VALUE;
+
 	private Runnable timerInterrupt;
 
 	private Runnable autoGraderInterrupt;
@@ -113,6 +113,11 @@ public class NachosSecurityManager extends SecurityManager {
 
 	private void exit(int exitStatus) {
 		forcePrivilege();
+
+		// several machines may share this JVM; stop only this one
+		if (BatchRunner.isBatchJob())
+			BatchRunner.exitJob(exitStatus);
+
 		System.exit(exitStatus);
 	}
 
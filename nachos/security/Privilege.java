@@ -157,6 +157,23 @@ public abstract class Privilege {
 		 * user code.
 		 */
 		public void tick(boolean inKernelMode);
+
+		/**
+		 * Return the time at which the earliest pending interrupt is due.
+		 * 
+		 * @return the due time of the next pending interrupt, or
+		 * <tt>Long.MAX_VALUE</tt> if no interrupts are pending.
+		 */
+		public long nextInterruptTime();
+
+		/**
+		 * Advance the simulated time by the specified number of user ticks
+		 * without checking for due interrupts. The caller must guarantee that
+		 * no pending interrupt becomes due during these ticks.
+		 * 
+		 * @param count the number of user ticks to add.
+		 */
+		public void advanceUserTicks(long count);
 	}
 
 	/**
@@ -1,10 +1,18 @@
 package nachos.threads;
-import java.util.PriorityQueue;
+import java.util.HashMap;
 import nachos.machine.*;
 
 /**
  * Uses the hardware timer to provide preemption, and to allow threads to sleep
  * until a certain time.
+ * 
+ * <p>
+ * Sleeping threads are kept in a hierarchical timing wheel. Each level of the
+ * wheel has <tt>wheelSlots</tt> slots, and each slot at one level spans as many
+ * ticks as the whole of the level below it. A timer is placed at the lowest
+ * level whose span reaches its wake time, and moved down a level when the
+ * wheel reaches its slot, until it expires from the bottom level. Setting and
+ * cancelling a timer take constant time, however many threads are asleep.
  */
 
 
@@ -16,28 +24,31 @@ public class Alarm {
 	 * <p>
 	 * <b>Note</b>: Nachos will not function correctly with more than one alarm.
 	 */
-	class ThreadTimePair implements Comparable<ThreadTimePair> {
+	class ThreadTimePair {
 		KThread thread;
 		long wakeTime; // The time at which the thread should be woken up
+
+		/** The neighbours of this timer in its slot's list. */
+		ThreadTimePair prev = this, next = this;
+
+		/** The slot this timer is in. */
+		int level, slot;
 	
 		public ThreadTimePair(KThread thread, long wakeTime) {
 			this.thread = thread;
 			this.wakeTime = wakeTime;
 		}
-	
-		@Override
-		public int compareTo(ThreadTimePair other) {
-			return Long.compare(this.wakeTime, other.wakeTime);
-		}
-		
-		// Optionally, getters and setters can be added here for `thread` and `wakeTime`.
 	}
 	
 
-	private PriorityQueue<ThreadTimePair> queue;
-
 	public Alarm() {
-		queue = new PriorityQueue<>();
+		slots = new ThreadTimePair[wheelLevels][wheelSlots];
+		for (int level = 0; level < wheelLevels; level++) {
+			for (int slot = 0; slot < wheelSlots; slot++)
+				slots[level][slot] = new ThreadTimePair(null, 0);
+		}
+		current = Machine.timer().getTime();
+
 		Machine.timer().setInterruptHandler(new Runnable() {
 			public void run() {
 				timerInterrupt();
@@ -47,23 +58,36 @@ public class Alarm {
 
 	/**
 	 * The timer interrupt handler. This is called by the machine's timer
-	 * periodically (approximately every 500 clock ticks). Causes the current
-	 * thread to yield, forcing a context switch if there is another thread that
-	 * should be run.
+	 * periodically (approximately every 500 clock ticks). Wakes every thread
+	 * whose time has come, and then causes the current thread to yield,
+	 * forcing a context switch if there is another thread that should be run,
+	 * unless the scheduler says its time slice has not run out.
 	 */
 	public void timerInterrupt() {
-		KThread.currentThread().yield();
-		while(!queue.isEmpty()){
-			ThreadTimePair nextThread = queue.peek();
-			if (nextThread.wakeTime <= Machine.timer().getTime()){
-				nextThread.thread.ready();				
-				queue.poll();
-			}
-			else {
+		long now = Machine.timer().getTime();
+
+		// wake sleepers first, so they can be chosen by this yield
+		while (numTimers > 0) {
+			long event = nextEvent();
+			if (event > now)
 				break;
+
+			current = event;
+			for (int level = wheelLevels - 1; level > 0; level--) {
+				if ((current & ((1L << (level * wheelBits)) - 1)) == 0)
+					cascade(level, slotOf(current, level));
 			}
+			expire(slotOf(current, 0));
+			current++;
 		}
-		
+		current = Math.max(current, now + 1);
+
+		// a tickless timer only interrupts when asked to
+		if (numTimers > 0)
+			Machine.timer().armInterrupt(nextEvent());
+
+		if (ThreadedKernel.scheduler.preemptCurrentThread())
+			KThread.currentThread().yield();
 	}
 
 	/**
@@ -82,14 +106,48 @@ public class Alarm {
 		// for now, cheat just to get something working (busy waiting is bad)
 		if (x>0) {
 			long wakeTime = Machine.timer().getTime() + x;
-			ThreadTimePair pair = new ThreadTimePair(KThread.currentThread(), wakeTime);
 			boolean intStatus = Machine.interrupt().disable(); // disable interrupts
-			queue.add(pair);
-			KThread.sleep(); // put the thread to sleep
+			sleepUntil(wakeTime);
 			Machine.interrupt().restore(intStatus); // restore interrupts
 		}
 	}
 
+	/**
+	 * Finish the current job of a periodic thread, and put the thread to
+	 * sleep until its next job is released, at the start of its next period.
+	 * Returns at once if that time has already passed. The thread must have
+	 * been made periodic with <tt>EDFScheduler.setPeriodic()</tt>.
+	 * 
+	 * @see nachos.threads.EDFScheduler#finishJob
+	 */
+	public void waitForNextPeriod() {
+		Lib.assertTrue(ThreadedKernel.scheduler instanceof EDFScheduler);
+
+		boolean intStatus = Machine.interrupt().disable();
+
+		long release = ((EDFScheduler) ThreadedKernel.scheduler)
+				.finishJob(KThread.currentThread());
+		if (release > Machine.timer().getTime())
+			sleepUntil(release);
+
+		Machine.interrupt().restore(intStatus);
+	}
+
+	/**
+	 * Put the current thread to sleep until the first timer interrupt at or
+	 * after <i>wakeTime</i>. Interrupts must be disabled.
+	 */
+	private void sleepUntil(long wakeTime) {
+		ThreadTimePair pair = new ThreadTimePair(KThread.currentThread(), wakeTime);
+		Lib.assertTrue(timers.put(pair.thread, pair) == null);
+
+		schedule(pair);
+		numTimers++;
+
+		Machine.timer().armInterrupt(wakeTime);
+		KThread.sleep(); // put the thread to sleep
+	}
+
         /**
 	 * Cancel any timer set by <i>thread</i>, effectively waking
 	 * up the thread immediately (placing it in the scheduler
@@ -101,21 +159,145 @@ public class Alarm {
 	 */
         public boolean cancel(KThread thread) {
 			boolean intStatus = Machine.interrupt().disable();
-			boolean removed = false;
-			 // Iterate through the queue to find and remove the thread
-			 for (ThreadTimePair pair : queue) {
-				if (pair.thread == thread) {
-					pair.thread.ready(); // Wake up the thread
-					queue.remove(pair);
-					removed = true;
-					break;
-				}
+
+			ThreadTimePair pair = timers.remove(thread);
+			if (pair != null) {
+				unlink(pair);
+				numTimers--;
+				thread.ready(); // Wake up the thread
 			}
-			
+
 			Machine.interrupt().restore(intStatus); // Restore interrupts
-			return removed;
+			return pair != null;
+	}
+
+	/**
+	 * Return the earliest time, no earlier than <tt>current</tt>, at which a
+	 * timer expires from the bottom level or must be moved down from a higher
+	 * one. A slot above the bottom level is moved down when the wheel reaches
+	 * the start of the ticks it spans, so once the wheel is past that start,
+	 * the slot is not reached again until the level has gone all the way
+	 * round.
+	 */
+	private long nextEvent() {
+		long event = Long.MAX_VALUE;
+
+		for (int level = 0; level < wheelLevels; level++) {
+			if (occupied[level] == 0)
+				continue;
+
+			// the first slot whose span starts no earlier than current
+			int shift = level * wheelBits;
+			long position = (current + (1L << shift) - 1) >> shift;
+			long ahead = Long.rotateRight(occupied[level],
+					(int) (position & slotMask));
+
+			int distance = Long.numberOfTrailingZeros(ahead);
+			event = Math.min(event, (position + distance) << shift);
+		}
+
+		return event;
+	}
+
+	/**
+	 * Put a timer in the slot for its wake time, relative to
+	 * <tt>current</tt>. A timer beyond the reach of the top level goes in the
+	 * top level's furthest slot, and is placed again when that slot is
+	 * reached.
+	 */
+	private void schedule(ThreadTimePair pair) {
+		long when = Math.max(pair.wakeTime, current);
+		long delta = when - current;
+
+		int level = 0;
+		while (level < wheelLevels - 1
+				&& delta >= 1L << ((level + 1) * wheelBits))
+			level++;
+		if (delta >= 1L << (wheelLevels * wheelBits))
+			when = current + (1L << (wheelLevels * wheelBits)) - 1;
+
+		int slot = slotOf(when, level);
+		ThreadTimePair head = slots[level][slot];
+
+		pair.level = level;
+		pair.slot = slot;
+		pair.prev = head.prev;
+		pair.next = head;
+		head.prev.next = pair;
+		head.prev = pair;
+		occupied[level] |= 1L << slot;
+	}
+
+	private void unlink(ThreadTimePair pair) {
+		pair.prev.next = pair.next;
+		pair.next.prev = pair.prev;
+
+		ThreadTimePair head = slots[pair.level][pair.slot];
+		if (head.next == head)
+			occupied[pair.level] &= ~(1L << pair.slot);
+
+		pair.prev = pair.next = pair;
+	}
+
+	/**
+	 * Move every timer in a slot down to the slot for its wake time.
+	 */
+	private void cascade(int level, int slot) {
+		ThreadTimePair head = slots[level][slot];
+
+		while (head.next != head) {
+			ThreadTimePair pair = head.next;
+			unlink(pair);
+			schedule(pair);
+		}
 	}
 
+	/**
+	 * Wake every thread in a bottom level slot, in the order they went to
+	 * sleep.
+	 */
+	private void expire(int slot) {
+		ThreadTimePair head = slots[0][slot];
+
+		while (head.next != head) {
+			ThreadTimePair pair = head.next;
+			unlink(pair);
+			numTimers--;
+			timers.remove(pair.thread);
+			pair.thread.ready();
+		}
+	}
+
+	private static int slotOf(long time, int level) {
+		return (int) ((time >> (level * wheelBits)) & slotMask);
+	}
+
+	private static final int wheelBits = 6;
+
+	/** The number of slots at each level of the wheel. */
+	private static final int wheelSlots = 1 << wheelBits;
+
+	private static final long slotMask = wheelSlots - 1;
+
+	/** Enough levels to reach about 16 million ticks ahead. */
+	private static final int wheelLevels = 4;
+
+	/** The head of each slot's circular list of timers. */
+	private ThreadTimePair[][] slots;
+
+	/** A bit set for each level, with a bit for each non-empty slot. */
+	private long[] occupied = new long[wheelLevels];
+
+	/**
+	 * The next tick the wheel has to process. Every timer due before it has
+	 * expired.
+	 */
+	private long current;
+
+	private int numTimers = 0;
+
+	/** The timer of each sleeping thread, so it can be cancelled. */
+	private HashMap<KThread, ThreadTimePair> timers = new HashMap<KThread, ThreadTimePair>();
 
 
 
@@ -2,40 +2,264 @@ package nachos.threads;
 
 import nachos.machine.*;
 
+import java.util.LinkedList;
+
 /**
  * A <i>communicator</i> allows threads to synchronously exchange 32-bit
  * messages. Multiple threads can be waiting to <i>speak</i>, and multiple
  * threads can be waiting to <i>listen</i>. But there should never be a time
  * when both a speaker and a listener are waiting, because the two threads can
  * be paired off at this point.
+ *
+ * <p>
+ * A communicator may also be given a buffer of a fixed number of words, in
+ * which case a speaker only waits until its words are in the buffer, rather
+ * than until a listener has received them.
+ *
+ * <p>
+ * Words can be moved in bulk with <tt>speak(int[])</tt> and
+ * <tt>listen(int[], int)</tt>. A listener takes as many words as it has room
+ * for, from the buffer and then from every waiting speaker in turn, and wakes
+ * each speaker whose words it has finished once. Words are received in the
+ * order in which they were spoken.
  */
 public class Communicator {
 	/**
 	 * Allocate a new communicator.
 	 */
 	public Communicator() {
+		this(0);
+	}
+
+	/**
+	 * Allocate a new communicator with a buffer.
+	 *
+	 * @param capacity the number of words a speaker may leave in the
+	 * communicator without waiting for a listener, or 0 for none.
+	 */
+	public Communicator(int capacity) {
+		Lib.assertTrue(capacity >= 0);
+
+		buffer = new int[capacity];
 	}
 
 	/**
 	 * Wait for a thread to listen through this communicator, and then transfer
 	 * <i>word</i> to the listener.
-	 * 
+	 *
 	 * <p>
 	 * Does not return until this thread is paired up with a listening thread.
 	 * Exactly one listener should receive <i>word</i>.
-	 * 
+	 *
 	 * @param word the integer to transfer.
 	 */
 	public void speak(int word) {
+		speak(new int[] { word });
+	}
+
+	/**
+	 * Transfer every one of <i>words</i> to listeners, in order. Does not
+	 * return until every word has been received by a listener, or has been
+	 * placed in the buffer.
+	 *
+	 * @param words the integers to transfer.
+	 */
+	public void speak(int[] words) {
+		lock.acquire();
+
+		Message message = new Message(words);
+
+		// an earlier speaker's words go first, so only fill the buffer
+		// directly if no one else is waiting
+		if (speakers.isEmpty())
+			fill(message);
+
+		if (message.position < words.length) {
+			speakers.add(message);
+			listeners.wake();
+
+			while (message.position < words.length)
+				message.delivered.sleep();
+		}
+		else if (words.length > 0) {
+			listeners.wake();
+		}
+
+		lock.release();
 	}
 
 	/**
 	 * Wait for a thread to speak through this communicator, and then return the
 	 * <i>word</i> that thread passed to <tt>speak()</tt>.
-	 * 
+	 *
 	 * @return the integer transferred.
 	 */
 	public int listen() {
-		return 0;
+		int[] word = new int[1];
+		listen(word, 1);
+
+		return word[0];
 	}
+
+	/**
+	 * Wait for at least one word to be spoken, and then receive as many words
+	 * as are available, up to <i>max</i>.
+	 *
+	 * @param out the array to store the received words in.
+	 * @param max the maximum number of words to receive.
+	 * @return the number of words received, at least 1.
+	 */
+	public int listen(int[] out, int max) {
+		max = Math.min(max, out.length);
+		Lib.assertTrue(max > 0);
+
+		lock.acquire();
+
+		while (count == 0 && speakers.isEmpty())
+			listeners.sleep();
+
+		int received = 0;
+
+		// take the buffered words first, since they were spoken first
+		while (received < max && count > 0) {
+			out[received++] = buffer[head];
+			head = (head + 1) % buffer.length;
+			count--;
+		}
+
+		// then take words straight from the waiting speakers
+		while (received < max && !speakers.isEmpty()) {
+			Message message = speakers.getFirst();
+			int n = Math.min(max - received, message.words.length
+					- message.position);
+			System.arraycopy(message.words, message.position, out, received,
+					n);
+			message.position += n;
+			received += n;
+
+			if (message.position == message.words.length) {
+				speakers.removeFirst();
+				message.delivered.wake();
+			}
+		}
+
+		// move waiting speakers' words into the room we just made
+		while (!speakers.isEmpty() && count < buffer.length) {
+			Message message = speakers.getFirst();
+			fill(message);
+
+			if (message.position == message.words.length) {
+				speakers.removeFirst();
+				message.delivered.wake();
+			}
+		}
+
+		// leave the rest for another listener
+		if (count > 0 || !speakers.isEmpty())
+			listeners.wake();
+
+		lock.release();
+
+		return received;
+	}
+
+	/**
+	 * Copy as many of a message's remaining words into the buffer as will fit.
+	 */
+	private void fill(Message message) {
+		while (count < buffer.length
+				&& message.position < message.words.length) {
+			buffer[(head + count) % buffer.length] = message.words[message.position++];
+			count++;
+		}
+	}
+
+	private class Message {
+		Message(int[] words) {
+			this.words = words;
+		}
+
+		int[] words;
+
+		/** The number of words that have been received or buffered. */
+		int position = 0;
+
+		Condition delivered = new Condition(lock);
+	}
+
+	/**
+	 * Tests the communicator with several speakers and listeners, single
+	 * words and bulk transfers, with and without a buffer.
+	 */
+	public static void selfTest() {
+		for (int capacity = 0; capacity <= 8; capacity += 8) {
+			final Communicator com = new Communicator(capacity);
+			final int speakers = 3, perSpeaker = 40;
+			final long[] sums = new long[2];
+
+			KThread[] threads = new KThread[5];
+			for (int i = 0; i < speakers; i++) {
+				final int id = i;
+				threads[i] = new KThread(new Runnable() {
+					public void run() {
+						for (int j = 0; j < perSpeaker; j += 4) {
+							int[] words = new int[4];
+							for (int k = 0; k < 4; k++)
+								words[k] = id * 1000 + j + k;
+							if (id == 0)
+								for (int k = 0; k < 4; k++)
+									com.speak(words[k]);
+							else
+								com.speak(words);
+						}
+					}
+				}).setName("speaker " + i);
+			}
+			for (int i = 0; i < 2; i++) {
+				final int id = i;
+				threads[speakers + i] = new KThread(new Runnable() {
+					public void run() {
+						int[] out = new int[5];
+						int remaining = speakers * perSpeaker / 2;
+						while (remaining > 0) {
+							int n = 1;
+							if (id == 0)
+								n = com.listen(out, Math.min(5, remaining));
+							else
+								out[0] = com.listen();
+
+							for (int k = 0; k < n; k++)
+								sums[id] += out[k];
+							remaining -= n;
+						}
+					}
+				}).setName("listener " + i);
+			}
+
+			for (int i = 0; i < threads.length; i++)
+				threads[i].fork();
+			for (int i = 0; i < threads.length; i++)
+				threads[i].join();
+
+			long expected = 0;
+			for (int i = 0; i < speakers; i++)
+				for (int j = 0; j < perSpeaker; j++)
+					expected += i * 1000 + j;
+			Lib.assertTrue(sums[0] + sums[1] == expected,
+					"communicator lost or duplicated words");
+		}
+	}
+
+	private Lock lock = new Lock();
+
+	/** Listeners waiting for words. */
+	private Condition listeners = new Condition(lock);
+
+	/** Speakers whose words have not all been received or buffered yet. */
+	private LinkedList<Message> speakers = new LinkedList<Message>();
+
+	/** A circular buffer of words spoken but not yet received. */
+	private int[] buffer;
+
+	private int head = 0, count = 0;
 }
@@ -0,0 +1,468 @@
+package nachos.threads;
+
+import nachos.machine.*;
+
+/**
+ * An earliest-deadline-first scheduler for periodic threads.
+ * 
+ * <p>
+ * A periodic thread is given a period, a relative deadline and a cost with
+ * <tt>setPeriodic()</tt>. Its work is divided into jobs, one per period: a job
+ * is released at the start of a period, must finish within the relative
+ * deadline of its release, and is expected to need at most the cost in ticks.
+ * The thread finishes each job by calling <tt>Alarm.waitForNextPeriod()</tt>,
+ * which sleeps until the next release. A job that finishes after its
+ * deadline is counted in <tt>Stats.numDeadlineMisses</tt>.
+ * 
+ * <p>
+ * Every queue serves the thread with the earliest absolute deadline first,
+ * and threads with equal deadlines in the order they started waiting. Threads
+ * that are not periodic have no deadline, so they run, in FIFO order, only
+ * when no periodic thread is ready. The timer interrupt preempts the running
+ * thread as soon as a thread with an earlier deadline is ready, and time
+ * slices the threads without deadlines among themselves.
+ * 
+ * <p>
+ * A thread is only made periodic if the task set stays schedulable: the sum
+ * of cost / min(period, deadline) over every periodic thread must not exceed
+ * 1. This is exact when every deadline equals its period.
+ * 
+ * <p>
+ * Deadlines are not transferred through locks or joins.
+ */
+public class EDFScheduler extends Scheduler {
+	/**
+	 * Allocate a new earliest-deadline-first scheduler.
+	 */
+	public EDFScheduler() {
+	}
+
+	/**
+	 * Allocate a new deadline-ordered thread queue.
+	 * 
+	 * @param transferPriority ignored. This scheduler does not transfer
+	 * deadlines.
+	 * @return a new deadline-ordered thread queue.
+	 */
+	public ThreadQueue newThreadQueue(boolean transferPriority) {
+		return new DeadlineQueue();
+	}
+
+	/**
+	 * Allocate the ready queue, which <tt>preemptCurrentThread()</tt>
+	 * consults.
+	 * 
+	 * @return the new ready queue.
+	 */
+	public ThreadQueue newReadyQueue() {
+		Lib.assertTrue(readyQueue == null);
+
+		readyQueue = new DeadlineQueue();
+		return readyQueue;
+	}
+
+	/**
+	 * Make a thread periodic, with its first job released now. Fails if the
+	 * thread would make the task set unschedulable. Must be called with
+	 * interrupts disabled.
+	 * 
+	 * @param thread the thread to make periodic.
+	 * @param period the time between releases, in ticks.
+	 * @param deadline the time after each release by which the job must
+	 * finish, in ticks.
+	 * @param cost the most ticks each job needs.
+	 * @return <tt>true</tt> if the thread was admitted.
+	 */
+	public boolean setPeriodic(KThread thread, long period, long deadline,
+			long cost) {
+		Lib.assertTrue(Machine.interrupt().disabled());
+		Lib.assertTrue(period > 0 && deadline > 0 && cost > 0);
+
+		ThreadState state = getThreadState(thread);
+		double density = (double) cost / Math.min(period, deadline);
+		double others = utilization - state.density;
+
+		if (others + density > 1.0 + 1e-9)
+			return false;
+
+		utilization = others + density;
+		state.density = density;
+		state.period = period;
+		state.relativeDeadline = deadline;
+		state.release = Machine.timer().getTime();
+		state.setDeadline(state.release + deadline);
+
+		return true;
+	}
+
+	/**
+	 * Remove a thread from the task set, so it no longer has a deadline.
+	 * Must be called with interrupts disabled.
+	 * 
+	 * @param thread the thread to make non-periodic.
+	 */
+	public void clearPeriodic(KThread thread) {
+		Lib.assertTrue(Machine.interrupt().disabled());
+
+		ThreadState state = getThreadState(thread);
+		utilization -= state.density;
+		state.density = 0;
+		state.period = 0;
+		state.setDeadline(noDeadline);
+	}
+
+	/**
+	 * Finish the current job of a periodic thread, counting a deadline miss
+	 * if it is late, and move the thread on to its next job. Called by
+	 * <tt>Alarm.waitForNextPeriod()</tt> with interrupts disabled.
+	 * 
+	 * @param thread the periodic thread.
+	 * @return the release time of the next job.
+	 */
+	public long finishJob(KThread thread) {
+		Lib.assertTrue(Machine.interrupt().disabled());
+
+		ThreadState state = getThreadState(thread);
+		Lib.assertTrue(state.period > 0, "thread is not periodic");
+
+		long now = Machine.timer().getTime();
+		if (now > state.deadline)
+			Machine.incrNumDeadlineMisses();
+
+		state.release += state.period;
+		state.setDeadline(state.release + state.relativeDeadline);
+
+		return state.release;
+	}
+
+	/**
+	 * Return the utilization of the task set admitted so far.
+	 * 
+	 * @return the sum of cost / min(period, deadline) over every periodic
+	 * thread.
+	 */
+	public double getUtilization() {
+		return utilization;
+	}
+
+	/**
+	 * Preempt the current thread if a thread with an earlier deadline is
+	 * ready. Threads without deadlines are always preempted, so they share
+	 * the processor in turn.
+	 */
+	public boolean preemptCurrentThread() {
+		Lib.assertTrue(Machine.interrupt().disabled());
+
+		ThreadState state = getThreadState(KThread.currentThread());
+		if (state.deadline == noDeadline || readyQueue == null)
+			return true;
+
+		ThreadState next = readyQueue.pickNextThread();
+		return next != null && next.deadline < state.deadline;
+	}
+
+	/**
+	 * Return the scheduling state of the specified thread.
+	 * 
+	 * @param thread the thread whose scheduling state to return.
+	 * @return the scheduling state of the specified thread.
+	 */
+	protected ThreadState getThreadState(KThread thread) {
+		if (thread.schedulingState == null)
+			thread.schedulingState = new ThreadState(thread);
+
+		return (ThreadState) thread.schedulingState;
+	}
+
+	/**
+	 * A <tt>ThreadQueue</tt> that keeps its waiting threads in a binary heap
+	 * ordered by absolute deadline. Each thread's state records its index in
+	 * the heap, so a waiting thread whose deadline changes is moved in
+	 * logarithmic time.
+	 */
+	private class DeadlineQueue extends ThreadQueue {
+		/**
+		 * Add a thread to the heap.
+		 */
+		public void waitForAccess(KThread thread) {
+			Lib.assertTrue(Machine.interrupt().disabled());
+
+			ThreadState state = getThreadState(thread);
+			Lib.assertTrue(state.waitQueue == null);
+
+			state.waitQueue = this;
+			state.waitTime = numWaits++;
+
+			if (size == heap.length) {
+				ThreadState[] larger = new ThreadState[size * 2];
+				System.arraycopy(heap, 0, larger, 0, size);
+				heap = larger;
+			}
+
+			heap[size] = state;
+			state.heapIndex = size++;
+			siftUp(state.heapIndex);
+		}
+
+		/**
+		 * Remove the thread with the earliest deadline.
+		 * 
+		 * @return the chosen thread, or <tt>null</tt> if the queue is empty.
+		 */
+		public KThread nextThread() {
+			Lib.assertTrue(Machine.interrupt().disabled());
+
+			ThreadState state = pickNextThread();
+			if (state == null)
+				return null;
+
+			remove(state);
+			return state.thread;
+		}
+
+		/**
+		 * Cancel the thread on the queue by removing it.
+		 * 
+		 * @return <tt>true</tt> if thread was in the queue and has been
+		 * removed, or <tt>false</tt> otherwise.
+		 */
+		public boolean cancelThread(KThread thread) {
+			Lib.assertTrue(Machine.interrupt().disabled());
+
+			ThreadState state = getThreadState(thread);
+			if (state.waitQueue != this)
+				return false;
+
+			remove(state);
+			return true;
+		}
+
+		/**
+		 * The specified thread has received exclusive access, without using
+		 * <tt>waitForAccess()</tt> or <tt>nextThread()</tt>. Assert that no
+		 * threads are waiting for access.
+		 */
+		public void acquire(KThread thread) {
+			Lib.assertTrue(Machine.interrupt().disabled());
+
+			Lib.assertTrue(size == 0);
+		}
+
+		/**
+		 * Print out the waiting threads with their deadlines.
+		 */
+		public void print() {
+			Lib.assertTrue(Machine.interrupt().disabled());
+
+			for (int i = 0; i < size; i++)
+				System.out.print(heap[i].thread + " (" + heap[i].deadline
+						+ ") ");
+			System.out.println();
+		}
+
+		ThreadState pickNextThread() {
+			return (size > 0) ? heap[0] : null;
+		}
+
+		void remove(ThreadState state) {
+			int index = state.heapIndex;
+			ThreadState last = heap[--size];
+			heap[size] = null;
+
+			if (last != state) {
+				heap[index] = last;
+				last.heapIndex = index;
+				update(last);
+			}
+
+			state.waitQueue = null;
+			state.heapIndex = -1;
+		}
+
+		/**
+		 * Move a waiting thread whose deadline has changed to its new place.
+		 */
+		void update(ThreadState state) {
+			siftUp(state.heapIndex);
+			siftDown(state.heapIndex);
+		}
+
+		private boolean before(ThreadState a, ThreadState b) {
+			if (a.deadline != b.deadline)
+				return a.deadline < b.deadline;
+
+			return a.waitTime < b.waitTime;
+		}
+
+		private void siftUp(int index) {
+			ThreadState state = heap[index];
+
+			while (index > 0) {
+				int parent = (index - 1) / 2;
+				if (!before(state, heap[parent]))
+					break;
+
+				heap[index] = heap[parent];
+				heap[index].heapIndex = index;
+				index = parent;
+			}
+
+			heap[index] = state;
+			state.heapIndex = index;
+		}
+
+		private void siftDown(int index) {
+			ThreadState state = heap[index];
+
+			while (true) {
+				int child = 2 * index + 1;
+				if (child >= size)
+					break;
+				if (child + 1 < size && before(heap[child + 1], heap[child]))
+					child++;
+				if (!before(heap[child], state))
+					break;
+
+				heap[index] = heap[child];
+				heap[index].heapIndex = index;
+				index = child;
+			}
+
+			heap[index] = state;
+			state.heapIndex = index;
+		}
+
+		private ThreadState[] heap = new ThreadState[4];
+
+		private int size = 0;
+	}
+
+	/**
+	 * The scheduling state of a thread: its period, and the deadline of its
+	 * current job.
+	 */
+	protected class ThreadState {
+		ThreadState(KThread thread) {
+			this.thread = thread;
+		}
+
+		void setDeadline(long deadline) {
+			this.deadline = deadline;
+			if (waitQueue != null)
+				waitQueue.update(this);
+		}
+
+		/** The thread with which this object is associated. */
+		KThread thread;
+
+		/** The time between releases, or 0 if the thread is not periodic. */
+		long period = 0;
+
+		long relativeDeadline;
+
+		/** The cost of a job divided by min(period, relative deadline). */
+		double density = 0;
+
+		/** The release time of the current job. */
+		long release;
+
+		/** The absolute deadline of the current job. */
+		long deadline = noDeadline;
+
+		/** The queue the associated thread is waiting on, if any. */
+		DeadlineQueue waitQueue = null;
+
+		int heapIndex = -1;
+
+		/** When the associated thread started waiting on <tt>waitQueue</tt>. */
+		long waitTime;
+	}
+
+	/**
+	 * Tests admission control, and that periodic threads meet their deadlines
+	 * while a thread without a deadline soaks up the spare time. Must be run
+	 * with this scheduler selected.
+	 */
+	public static void selfTest() {
+		Lib.assertTrue(ThreadedKernel.scheduler instanceof EDFScheduler);
+		final EDFScheduler scheduler = (EDFScheduler) ThreadedKernel.scheduler;
+
+		final long[] periods = { 4000, 6000, 10000 };
+		final long[] costs = { 1000, 1500, 2000 };
+		final int jobs = 15;
+		final boolean[] done = new boolean[1];
+		final int[] late = new int[1];
+
+		KThread background = new KThread(new Runnable() {
+			public void run() {
+				while (!done[0]) {
+					Machine.interrupt().disable();
+					Machine.interrupt().enable();
+				}
+			}
+		}).setName("background");
+		background.fork();
+
+		KThread[] tasks = new KThread[periods.length];
+		for (int i = 0; i < tasks.length; i++) {
+			final int id = i;
+			final long start = Machine.timer().getTime();
+			tasks[i] = new KThread(new Runnable() {
+				public void run() {
+					for (int j = 0; j < jobs; j++) {
+						// do about half the declared cost of work
+						long end = Machine.timer().getTime() + costs[id] / 2;
+						while (Machine.timer().getTime() < end) {
+							Machine.interrupt().disable();
+							Machine.interrupt().enable();
+						}
+
+						if (Machine.timer().getTime() > start + (j + 1)
+								* periods[id])
+							late[0]++;
+						ThreadedKernel.alarm.waitForNextPeriod();
+					}
+
+					boolean intStatus = Machine.interrupt().disable();
+					scheduler.clearPeriodic(KThread.currentThread());
+					Machine.interrupt().restore(intStatus);
+				}
+			}).setName("periodic " + i);
+
+			boolean intStatus = Machine.interrupt().disable();
+			Lib.assertTrue(scheduler.setPeriodic(tasks[i], periods[i],
+					periods[i], costs[i]), "schedulable task rejected");
+			Machine.interrupt().restore(intStatus);
+		}
+
+		// 0.25 + 0.25 + 0.2 leaves room for 0.3 more
+		KThread extra = new KThread();
+		boolean intStatus = Machine.interrupt().disable();
+		Lib.assertTrue(!scheduler.setPeriodic(extra, 1000, 1000, 400),
+				"unschedulable task admitted");
+		Machine.interrupt().restore(intStatus);
+
+		for (int i = 0; i < tasks.length; i++)
+			tasks[i].fork();
+		for (int i = 0; i < tasks.length; i++)
+			tasks[i].join();
+
+		done[0] = true;
+		background.join();
+
+		Lib.assertTrue(late[0] == 0, "periodic thread missed a deadline");
+		Lib.assertTrue(Math.abs(scheduler.getUtilization()) < 1e-9);
+	}
+
+	/** The deadline of a thread that is not periodic. */
+	private static final long noDeadline = Long.MAX_VALUE;
+
+	/** The sum of the densities of the periodic threads. */
+	private double utilization = 0;
+
+	/** The ready queue, once <tt>KThread</tt> has allocated it. */
+	private DeadlineQueue readyQueue = null;
+
+	/** The number of times a thread has started waiting on a queue. */
+	private long numWaits = 0;
+}
@@ -2,20 +2,46 @@ package nachos.threads;
 
 import java.util.*;
 import java.util.function.IntSupplier;
+import java.util.function.IntUnaryOperator;
 import nachos.machine.*;
 
 /**
  * A <i>Future</i> is a convenient mechanism for using asynchonous
  * operations.
+ *
+ * <p>
+ * Futures do not get a KThread each.  Their functions are run by a
+ * pool of worker KThreads, started when the first <i>Future</i> is
+ * created; the <tt>Future.workers</tt> configuration key sets the
+ * size of the pool (4 by default).  A thread that calls <i>get</i> on
+ * a future whose function has not been picked up by a worker yet runs
+ * the function itself.
+ *
+ * <p>
+ * A function may wait on other futures, including ones that only a
+ * worker can complete, such as <i>thenApply</i> futures.  Whenever
+ * every worker is blocked in <i>get</i> while work is queued, the
+ * pool starts another worker, so the queued work still runs.  The
+ * pool never shrinks again.
  */
 public class Future {
     /**
      * Instantiate a new <i>Future</i>.  The <i>Future</i> will invoke
-     * the supplied <i>function</i> asynchronously in a KThread.  In
+     * the supplied <i>function</i> asynchronously on a worker.  In
      * particular, the constructor should not block as a consequence
      * of invoking <i>function</i>.
      */
     public Future (IntSupplier function) {
+	this(function, true);
+    }
+
+    private Future (IntSupplier function, boolean submit) {
+	this.function = function;
+
+	lock.acquire();
+	if (submit)
+	    submit();
+	lock.release();
     }
 
     /**
@@ -28,6 +54,326 @@ public class Future {
      * threads), and it should always return the same value.
      */
     public int get () {
-	return -1;
+	lock.acquire();
+
+	// run the function here rather than wait for a worker to get to it
+	if (state == queued)
+	    run();
+
+	if (state != done && workers.contains(KThread.currentThread())) {
+	    // a blocked worker must not leave queued work with no one to
+	    // run it
+	    numBlocked++;
+	    if (!queue.isEmpty() && numBlocked == workers.size())
+		startWorker();
+
+	    while (state != done)
+		finished.sleep();
+	    numBlocked--;
+	}
+
+	while (state != done)
+	    finished.sleep();
+
+	int result = value;
+	lock.release();
+
+	return result;
+    }
+
+    /**
+     * Return <tt>true</tt> if the result of this <i>Future</i> is
+     * available, so that <i>get</i> would not block.
+     */
+    public boolean isDone () {
+	lock.acquire();
+	boolean result = (state == done);
+	lock.release();
+
+	return result;
     }
+
+    /**
+     * Return a new <i>Future</i> whose value is <i>function</i>
+     * applied to the value of this one.  <i>function</i> is run by a
+     * worker once this <i>Future</i> completes; neither this call nor
+     * the completion of this <i>Future</i> blocks on it.
+     */
+    public Future thenApply (final IntUnaryOperator function) {
+	final Future next = new Future(new IntSupplier() {
+		public int getAsInt () {
+		    return function.applyAsInt(value);
+		}
+	    }, false);
+
+	lock.acquire();
+	whenDone(new Runnable() {
+		public void run () {
+		    next.submit();
+		}
+	    });
+	lock.release();
+
+	return next;
+    }
+
+    /**
+     * Return a new <i>Future</i> that completes, with the value 0,
+     * once every one of <i>futures</i> has completed.
+     */
+    public static Future allOf (Future... futures) {
+	final Future all = new Future(null, false);
+
+	lock.acquire();
+	all.pending = futures.length;
+	if (all.pending == 0)
+	    all.complete(0);
+
+	for (int i = 0; i < futures.length; i++) {
+	    futures[i].whenDone(new Runnable() {
+		    public void run () {
+			if (--all.pending == 0)
+			    all.complete(0);
+		    }
+		});
+	}
+	lock.release();
+
+	return all;
+    }
+
+    /**
+     * Return a new <i>Future</i> that completes as soon as any one of
+     * <i>futures</i> has completed, with the value of that one.
+     */
+    public static Future anyOf (Future... futures) {
+	Lib.assertTrue(futures.length > 0);
+
+	final Future any = new Future(null, false);
+
+	lock.acquire();
+	for (int i = 0; i < futures.length; i++) {
+	    final Future future = futures[i];
+	    future.whenDone(new Runnable() {
+		    public void run () {
+			if (any.state != done)
+			    any.complete(future.value);
+		    }
+		});
+	}
+	lock.release();
+
+	return any;
+    }
+
+    /**
+     * Queue this <i>Future</i> for the worker pool, starting the pool
+     * if necessary.  The lock must be held.
+     */
+    private void submit () {
+	if (workers.isEmpty())
+	    startWorkers();
+
+	state = queued;
+	queue.add(this);
+	if (numBlocked == workers.size())
+	    startWorker();
+	else
+	    workAvailable.wake();
+    }
+
+    /**
+     * Run the function of this <i>Future</i>, and complete it with the
+     * result.  The lock must be held, and is released while the
+     * function runs.
+     */
+    private void run () {
+	state = running;
+
+	lock.release();
+	int result = function.getAsInt();
+	lock.acquire();
+
+	complete(result);
+    }
+
+    /**
+     * Record the value of this <i>Future</i>, wake every thread waiting
+     * in <i>get</i>, and run the completion callbacks.  The lock must
+     * be held.
+     */
+    private void complete (int result) {
+	Lib.assertTrue(state != done);
+
+	value = result;
+	state = done;
+	finished.wakeAll();
+
+	for (Runnable callback : callbacks)
+	    callback.run();
+	callbacks = null;
+    }
+
+    /**
+     * Run <i>callback</i> once this <i>Future</i> has completed, or now
+     * if it already has.  The callback runs with the lock held, so it
+     * must not block.
+     */
+    private void whenDone (Runnable callback) {
+	if (state == done)
+	    callback.run();
+	else
+	    callbacks.add(callback);
+    }
+
+    private static void startWorkers () {
+	int numWorkers = Config.getInteger("Future.workers", 4);
+	Lib.assertTrue(numWorkers > 0);
+
+	for (int i = 0; i < numWorkers; i++)
+	    startWorker();
+    }
+
+    private static void startWorker () {
+	KThread worker = new KThread(new Runnable() {
+		public void run () {
+		    work();
+		}
+	    }).setName("future worker " + workers.size());
+
+	workers.add(worker);
+	worker.fork();
+    }
+
+    private static void work () {
+	lock.acquire();
+
+	while (true) {
+	    while (queue.isEmpty())
+		workAvailable.sleep();
+
+	    // futures already run by a thread in get() stay in the queue
+	    Future future = queue.removeFirst();
+	    if (future.state == queued)
+		future.run();
+	}
+    }
+
+    public static void selfTest () {
+	Future a = new Future(new IntSupplier() {
+		public int getAsInt () {
+		    KThread.yield();
+		    return 6;
+		}
+	    });
+	Future b = a.thenApply(new IntUnaryOperator() {
+		public int applyAsInt (int x) {
+		    return x * 7;
+		}
+	    });
+
+	Lib.assertTrue(b.get() == 42 && a.isDone() && a.get() == 6);
+
+	Future[] squares = new Future[20];
+	for (int i = 0; i < squares.length; i++) {
+	    final int n = i;
+	    squares[i] = new Future(new IntSupplier() {
+		    public int getAsInt () {
+			return n * n;
+		    }
+		});
+	}
+
+	Future any = anyOf(squares);
+	allOf(squares).get();
+	int sum = 0;
+	for (int i = 0; i < squares.length; i++) {
+	    Lib.assertTrue(squares[i].isDone());
+	    sum += squares[i].get();
+	}
+	Lib.assertTrue(sum == 2470);
+	int first = any.get();
+	int root = (int) Math.sqrt(first);
+	Lib.assertTrue(root * root == first);
+
+	// more futures than workers, all waiting on a future queued behind
+	// them, which the waiters must run themselves
+	final Future[] later = new Future[1];
+	Future[] waiters = new Future[workers.size() * 2];
+	for (int i = 0; i < waiters.length; i++) {
+	    waiters[i] = new Future(new IntSupplier() {
+		    public int getAsInt () {
+			while (later[0] == null)
+			    KThread.yield();
+			return later[0].get() + 1;
+		    }
+		});
+	}
+	later[0] = new Future(new IntSupplier() {
+		public int getAsInt () {
+		    return 1;
+		}
+	    });
+	for (int i = 0; i < waiters.length; i++)
+	    Lib.assertTrue(waiters[i].get() == 2);
+
+	// a continuation for every worker, all waiting on a continuation
+	// of a future queued behind them, which only a new worker can run
+	final Future[] last = new Future[1];
+	Future[] blocked = new Future[workers.size()];
+	for (int i = 0; i < blocked.length; i++) {
+	    blocked[i] = a.thenApply(new IntUnaryOperator() {
+		    public int applyAsInt (int x) {
+			while (last[0] == null)
+			    KThread.yield();
+			return last[0].get() + x;
+		    }
+		});
+	}
+	for (int i = 0; i < 10; i++)
+	    KThread.yield();
+	Future c = new Future(new IntSupplier() {
+		public int getAsInt () {
+		    return 1;
+		}
+	    });
+	last[0] = c.thenApply(new IntUnaryOperator() {
+		public int applyAsInt (int x) {
+		    return x + 1;
+		}
+	    });
+	for (int i = 0; i < blocked.length; i++)
+	    Lib.assertTrue(blocked[i].get() == 8);
+    }
+
+    private IntSupplier function;
+
+    private int value;
+
+    private int state = created;
+
+    /** The number of futures an <i>allOf</i> future is still waiting for. */
+    private int pending;
+
+    private LinkedList<Runnable> callbacks = new LinkedList<Runnable>();
+
+    private static final int created = 0, queued = 1, running = 2, done = 3;
+
+    /** Protects every future, and the queue of the worker pool. */
+    private static final Lock lock = new Lock();
+
+    private static final Condition workAvailable = new Condition(lock);
+
+    private static final LinkedList<Future> queue = new LinkedList<Future>();
+
+    private static final HashSet<KThread> workers = new HashSet<KThread>();
+
+    /** The number of workers blocked in <i>get</i>. */
+    private static int numBlocked = 0;
+
+    /*
+     * Threads in get() sleep on a condition per future, so completing
+     * one future wakes only its own waiters.
+     */
+    private final Condition finished = new Condition(lock);
 }
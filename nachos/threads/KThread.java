@@ -1,6 +1,5 @@
 package nachos.threads;
 import nachos.machine.*;
-import java.util.LinkedList;
 
 
 /**
@@ -59,9 +58,13 @@ public class KThread {
 			tcb = new TCB();
 		}
 		else {
-			readyQueue = ThreadedKernel.scheduler.newThreadQueue(false);
+			readyQueue = ThreadedKernel.scheduler.newReadyQueue();
 			readyQueue.acquire(this);
 
+			int cores = Config.getInteger("KThread.cores", 0);
+			if (cores > 0)
+				coreQueueLengths = new int[cores];
+
 			currentThread = this;
 			tcb = TCB.currentTCB();
 			name = "main";
@@ -155,6 +158,9 @@ public class KThread {
 
 		boolean intStatus = Machine.interrupt().disable();
 
+		// the thread has access to its join queue until it finishes
+		waitQueue.acquire(this);
+
 		tcb.start(new Runnable() {
 			public void run() {
 				runThread();
@@ -204,11 +210,10 @@ public class KThread {
 
 		currentThread.status = statusFinished;
 
-		if (currentThread.waitQueue != null) {
-			for (KThread thread : currentThread.waitQueue) {
-				thread.ready(); // wake up the thread
-			}
-		}
+		KThread thread;
+		while ((thread = currentThread.waitQueue.nextThread()) != null)
+			thread.ready(); // wake up the thread
+
 		sleep();
 	}
 
@@ -275,12 +280,37 @@ public class KThread {
 		Lib.assertTrue(status != statusReady);
 
 		status = statusReady;
-		if (this != idleThread)
+		if (this != idleThread) {
 			readyQueue.waitForAccess(this);
+			numReadyThreads++;
+
+			if (coreQueueLengths != null)
+				chooseCore();
+
+			// a tickless timer must still interrupt to time-slice
+			Machine.timer().armInterrupt(
+					Machine.timer().getTime() + Stats.TimerTicks);
+		}
 
 		Machine.autoGrader().readyThread(this);
 	}
 
+	/**
+	 * Account for this thread on the run queue of one of the simulated cores:
+	 * the core it last ran on, unless another core has a shorter queue. Only
+	 * the accounting is per core; threads are still dispatched from the one
+	 * ready queue, one at a time.
+	 */
+	private void chooseCore() {
+		for (int i = 0; i < coreQueueLengths.length; i++) {
+			if (coreQueueLengths[i] < coreQueueLengths[core])
+				core = i;
+		}
+
+		coreQueueLengths[core]++;
+		Machine.recordCoreReady(core, coreQueueLengths[core]);
+	}
+
 	/**
 	 * Waits for this thread to finish. If this thread is already finished,
 	 * return immediately. This method must only be called once; the second call
@@ -295,7 +325,7 @@ public class KThread {
 		boolean intStatus = Machine.interrupt().disable();
 
 		if(this.status!= statusFinished){
-			waitQueue.add(currentThread); // Add to wait queue
+			waitQueue.waitForAccess(currentThread); // Add to wait queue
 			currentThread.sleep();
 		}
 
@@ -317,8 +347,20 @@ public class KThread {
 
 		idleThread = new KThread(new Runnable() {
 			public void run() {
-				while (true)
+				while (true) {
+					// with a tickless timer, skip straight to the next
+					// interrupt instead of spinning. An interrupt during the
+					// last yield may have readied a thread, which must not
+					// be made to wait for the skipped time.
+					if (Machine.timer().isTickless()) {
+						boolean intStatus = Machine.interrupt().disable();
+						if (numReadyThreads == 0)
+							Machine.interrupt().idle();
+						Machine.interrupt().restore(intStatus);
+					}
+
 					KThread.yield();
+				}
 			}
 		});
 		idleThread.setName("idle");
@@ -336,6 +378,12 @@ public class KThread {
 		KThread nextThread = readyQueue.nextThread();
 		if (nextThread == null)
 			nextThread = idleThread;
+		else {
+			numReadyThreads--;
+
+			if (coreQueueLengths != null)
+				coreQueueLengths[nextThread.core]--;
+		}
 
 		nextThread.run();
 	}
@@ -436,6 +484,58 @@ public class KThread {
 		joinTest3();
 		joinTest4();
 		joinTest5();
+
+		if (Machine.timer().isTickless())
+			idleTest();
+	}
+
+	/**
+	 * Tests that a tickless idle thread does not skip time while a thread is
+	 * ready. A thread repeatedly blocks and is readied by a timer interrupt
+	 * that arrives while the idle thread is yielding, and must then run at the
+	 * next tick, not at the next pending interrupt.
+	 */
+	private static void idleTest() {
+		final KThread[] waiter = new KThread[1];
+		final long[] readyTime = new long[1];
+
+		Machine.timer().setInterruptHandler(new Runnable() {
+			public void run() {
+				if (waiter[0] != null) {
+					readyTime[0] = Machine.timer().getTime();
+					waiter[0].ready();
+					waiter[0] = null;
+				}
+			}
+		});
+
+		KThread thread = new KThread(new Runnable() {
+			public void run() {
+				for (int i = 0; i < 10; i++) {
+					boolean intStatus = Machine.interrupt().disable();
+
+					waiter[0] = currentThread;
+					Machine.timer().armInterrupt(Machine.timer().getTime() + 1);
+					KThread.sleep();
+
+					// only the next tick may pass before this thread runs
+					Lib.assertTrue(Machine.timer().getTime() - readyTime[0]
+							<= Stats.KernelTick,
+							"idle thread skipped time with a thread ready");
+
+					Machine.interrupt().restore(intStatus);
+				}
+			}
+		}).setName("idle test");
+		thread.fork();
+		thread.join();
+
+		// give the timer back to the alarm
+		Machine.timer().setInterruptHandler(new Runnable() {
+			public void run() {
+				ThreadedKernel.alarm.timerInterrupt();
+			}
+		});
 	}
 
 	private static final char dbgThread = 't';
@@ -481,13 +581,27 @@ public class KThread {
 
 	private static ThreadQueue readyQueue = null;
 
+	/** The number of threads in <tt>readyQueue</tt>. */
+	private static int numReadyThreads = 0;
+
+	/**
+	 * The run queue length of each simulated core, or <tt>null</tt> unless
+	 * <tt>KThread.cores</tt> is set.
+	 */
+	private static int[] coreQueueLengths = null;
+
+	/** The simulated core whose run queue this thread was last counted on. */
+	private int core = 0;
+
 	private static KThread currentThread = null;
 
 	private static KThread toBeDestroyed = null;
 
 	private static KThread idleThread = null;
 
-	private LinkedList<KThread> waitQueue = new LinkedList<KThread>();
+	/** Threads waiting in <tt>join()</tt>, which donate them priority. */
+	private ThreadQueue waitQueue = ThreadedKernel.scheduler
+			.newThreadQueue(true);
 
 	private boolean hasBeenJoined = false;
 
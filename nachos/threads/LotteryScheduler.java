@@ -2,10 +2,6 @@ package nachos.threads;
 
 import nachos.machine.*;
 
-import java.util.TreeSet;
-import java.util.HashSet;
-import java.util.Iterator;
-
 /**
  * A scheduler that chooses threads using a lottery.
  * 
@@ -25,6 +21,14 @@ import java.util.Iterator;
  * particular, tickets must be transferred through locks, and through joins.
  * Unlike a priority scheduler, these tickets add (as opposed to just taking the
  * maximum).
+ * 
+ * <p>
+ * Each queue keeps the tickets of its waiting threads in a Fenwick tree, so
+ * holding a lottery, adding or removing a thread, and changing a thread's
+ * tickets all take logarithmic time. Donations are kept incrementally: when
+ * a thread's effective tickets change, the difference is added to the queue
+ * it waits on and to the owner of that queue, and so on, rather than summed
+ * again from scratch.
  */
 public class LotteryScheduler extends PriorityScheduler {
 	/**
@@ -41,7 +45,464 @@ public class LotteryScheduler extends PriorityScheduler {
 	 * @return a new lottery thread queue.
 	 */
 	public ThreadQueue newThreadQueue(boolean transferPriority) {
-		// implement me
-		return null;
+		return new LotteryQueue(transferPriority);
+	}
+
+	public int getPriority(KThread thread) {
+		Lib.assertTrue(Machine.interrupt().disabled());
+
+		return getLotteryState(thread).tickets;
+	}
+
+	public int getEffectivePriority(KThread thread) {
+		Lib.assertTrue(Machine.interrupt().disabled());
+
+		return (int) Math.min(getLotteryState(thread).effectiveTickets,
+				Integer.MAX_VALUE);
+	}
+
+	public void setPriority(KThread thread, int priority) {
+		Lib.assertTrue(Machine.interrupt().disabled());
+
+		Lib.assertTrue(priority >= priorityMinimum
+				&& priority <= priorityMaximum);
+
+		getLotteryState(thread).setTickets(priority);
+	}
+
+	public boolean increasePriority() {
+		boolean intStatus = Machine.interrupt().disable();
+		boolean ret = true;
+
+		KThread thread = KThread.currentThread();
+
+		int priority = getPriority(thread);
+		if (priority == priorityMaximum)
+			ret = false;
+		else
+			setPriority(thread, priority + 1);
+
+		Machine.interrupt().restore(intStatus);
+		return ret;
+	}
+
+	public boolean decreasePriority() {
+		boolean intStatus = Machine.interrupt().disable();
+		boolean ret = true;
+
+		KThread thread = KThread.currentThread();
+
+		int priority = getPriority(thread);
+		if (priority == priorityMinimum)
+			ret = false;
+		else
+			setPriority(thread, priority - 1);
+
+		Machine.interrupt().restore(intStatus);
+		return ret;
+	}
+
+	/**
+	 * The default number of tickets for a new thread.
+	 */
+	public static final int priorityDefault = 1;
+
+	/**
+	 * The minimum number of tickets that a thread can have.
+	 */
+	public static final int priorityMinimum = 1;
+
+	/**
+	 * The maximum number of tickets that a thread can have.
+	 */
+	public static final int priorityMaximum = Integer.MAX_VALUE;
+
+	/**
+	 * Return the scheduling state of the specified thread.
+	 * 
+	 * @param thread the thread whose scheduling state to return.
+	 * @return the scheduling state of the specified thread.
+	 */
+	protected LotteryState getLotteryState(KThread thread) {
+		if (thread.schedulingState == null)
+			thread.schedulingState = new LotteryState(thread);
+
+		return (LotteryState) thread.schedulingState;
+	}
+
+	/**
+	 * A <tt>ThreadQueue</tt> that holds a lottery among its waiting threads.
+	 * 
+	 * <p>
+	 * The waiting threads occupy the slots <tt>0</tt> to <tt>size - 1</tt>,
+	 * and a Fenwick tree over the slots holds the prefix sums of their
+	 * effective tickets. The winner of a lottery is found by descending the
+	 * tree. A thread that leaves the queue is replaced by the thread in the
+	 * last slot, so the slots stay contiguous.
+	 */
+	protected class LotteryQueue extends ThreadQueue {
+		LotteryQueue(boolean transferPriority) {
+			this.transferPriority = transferPriority;
+		}
+
+		public void waitForAccess(KThread thread) {
+			Lib.assertTrue(Machine.interrupt().disabled());
+			getLotteryState(thread).waitForAccess(this);
+		}
+
+		public void acquire(KThread thread) {
+			Lib.assertTrue(Machine.interrupt().disabled());
+			getLotteryState(thread).acquire(this);
+		}
+
+		public KThread nextThread() {
+			Lib.assertTrue(Machine.interrupt().disabled());
+
+			LotteryState next = pickNextThread();
+			if (next == null) {
+				if (owner != null)
+					owner.release(this);
+				return null;
+			}
+
+			remove(next);
+			next.acquire(this);
+
+			return next.thread;
+		}
+
+		public boolean cancelThread(KThread thread) {
+			Lib.assertTrue(Machine.interrupt().disabled());
+
+			LotteryState state = getLotteryState(thread);
+			if (state.waitQueue != this)
+				return false;
+
+			remove(state);
+			return true;
+		}
+
+		/**
+		 * Hold a lottery among the waiting threads, without removing the
+		 * winner.
+		 * 
+		 * @return the thread holding the winning ticket, or <tt>null</tt> if
+		 * no threads are waiting.
+		 */
+		protected LotteryState pickNextThread() {
+			if (size == 0)
+				return null;
+
+			long ticket = Math.min((long) (Lib.random() * total), total - 1);
+
+			// find the first slot whose prefix sum exceeds the ticket
+			int index = 0;
+			for (int step = Integer.highestOneBit(slots.length); step > 0; step >>= 1) {
+				if (index + step <= slots.length && tree[index + step] <= ticket) {
+					index += step;
+					ticket -= tree[index];
+				}
+			}
+
+			return slots[index];
+		}
+
+		public void print() {
+			Lib.assertTrue(Machine.interrupt().disabled());
+
+			for (int i = 0; i < size; i++)
+				System.out.print(slots[i].thread + " ("
+						+ slots[i].effectiveTickets + ") ");
+			System.out.println();
+		}
+
+		/**
+		 * Add a thread to the last slot.
+		 */
+		void add(LotteryState state) {
+			if (size == slots.length)
+				grow();
+
+			slots[size] = state;
+			state.slot = size++;
+			addTickets(state.slot, state.effectiveTickets);
+
+			if (transferPriority && owner != null)
+				owner.adjustTickets(state.effectiveTickets);
+		}
+
+		/**
+		 * Remove a waiting thread, and take its tickets from the owner.
+		 */
+		void remove(LotteryState state) {
+			Lib.assertTrue(state.waitQueue == this);
+
+			int slot = state.slot;
+			int last = --size;
+
+			addTickets(slot, -state.effectiveTickets);
+			if (slot != last) {
+				LotteryState moved = slots[last];
+				addTickets(last, -moved.effectiveTickets);
+				addTickets(slot, moved.effectiveTickets);
+				slots[slot] = moved;
+				moved.slot = slot;
+			}
+			slots[last] = null;
+
+			state.waitQueue = null;
+			state.slot = -1;
+
+			if (transferPriority && owner != null)
+				owner.adjustTickets(-state.effectiveTickets);
+		}
+
+		/**
+		 * Add <i>delta</i> tickets to the specified slot.
+		 */
+		void addTickets(int slot, long delta) {
+			total += delta;
+			for (int i = slot + 1; i <= slots.length; i += i & -i)
+				tree[i] += delta;
+		}
+
+		/**
+		 * Double the number of slots, and rebuild the tree in linear time.
+		 */
+		private void grow() {
+			LotteryState[] larger = new LotteryState[slots.length * 2];
+			System.arraycopy(slots, 0, larger, 0, size);
+			slots = larger;
+
+			tree = new long[slots.length + 1];
+			for (int i = 1; i <= slots.length; i++) {
+				if (i <= size)
+					tree[i] += slots[i - 1].effectiveTickets;
+				int parent = i + (i & -i);
+				if (parent <= slots.length)
+					tree[parent] += tree[i];
+			}
+		}
+
+		/**
+		 * <tt>true</tt> if this queue should transfer tickets from waiting
+		 * threads to the owning thread.
+		 */
+		public boolean transferPriority;
+
+		/** The thread that has access, if this queue transfers tickets. */
+		LotteryState owner = null;
+
+		/** The sum of the effective tickets of the waiting threads. */
+		long total = 0;
+
+		private LotteryState[] slots = new LotteryState[4];
+
+		/** A Fenwick tree over <tt>slots</tt>, indexed from 1. */
+		private long[] tree = new long[slots.length + 1];
+
+		private int size = 0;
+	}
+
+	/**
+	 * The scheduling state of a thread under a lottery scheduler: its
+	 * tickets, its effective tickets including donations, and where it waits.
+	 * 
+	 * @see nachos.threads.KThread#schedulingState
+	 */
+	protected class LotteryState {
+		/**
+		 * Allocate a new <tt>LotteryState</tt> object and associate it with
+		 * the specified thread.
+		 * 
+		 * @param thread the thread this state belongs to.
+		 */
+		public LotteryState(KThread thread) {
+			this.thread = thread;
+		}
+
+		/**
+		 * Set the tickets of the associated thread.
+		 * 
+		 * @param tickets the new number of tickets.
+		 */
+		public void setTickets(int tickets) {
+			int delta = tickets - this.tickets;
+			this.tickets = tickets;
+
+			adjustTickets(delta);
+		}
+
+		/**
+		 * Called when the associated thread starts waiting on
+		 * <tt>waitQueue</tt>.
+		 * 
+		 * @param waitQueue the queue that the associated thread is now waiting
+		 * on.
+		 */
+		public void waitForAccess(LotteryQueue waitQueue) {
+			Lib.assertTrue(this.waitQueue == null);
+
+			this.waitQueue = waitQueue;
+			waitQueue.add(this);
+		}
+
+		/**
+		 * Called when the associated thread has acquired access to whatever is
+		 * guarded by <tt>waitQueue</tt>. The tickets of the threads still
+		 * waiting move from the previous owner to this one.
+		 * 
+		 * @param waitQueue the queue the associated thread has access to.
+		 */
+		public void acquire(LotteryQueue waitQueue) {
+			if (!waitQueue.transferPriority)
+				return;
+
+			if (waitQueue.owner != null)
+				waitQueue.owner.release(waitQueue);
+
+			waitQueue.owner = this;
+			adjustTickets(waitQueue.total);
+		}
+
+		/**
+		 * Called when the associated thread no longer has access to whatever
+		 * is guarded by <tt>waitQueue</tt>.
+		 */
+		void release(LotteryQueue waitQueue) {
+			Lib.assertTrue(waitQueue.owner == this);
+
+			waitQueue.owner = null;
+			adjustTickets(-waitQueue.total);
+		}
+
+		/**
+		 * Add <i>delta</i> to the effective tickets of the associated thread,
+		 * and pass the difference on along the chain of owners.
+		 */
+		void adjustTickets(long delta) {
+			LotteryState state = this;
+
+			while (state != null && delta != 0) {
+				state.effectiveTickets += delta;
+
+				LotteryQueue queue = state.waitQueue;
+				if (queue == null)
+					return;
+
+				queue.addTickets(state.slot, delta);
+				state = queue.transferPriority ? queue.owner : null;
+			}
+		}
+
+		/** The thread with which this object is associated. */
+		protected KThread thread;
+
+		/** The tickets of the associated thread. */
+		protected int tickets = priorityDefault;
+
+		/**
+		 * The tickets of the associated thread, plus the effective tickets of
+		 * every thread waiting on a queue it owns.
+		 */
+		protected long effectiveTickets = priorityDefault;
+
+		/** The queue the associated thread is waiting on, if any. */
+		protected LotteryQueue waitQueue = null;
+
+		/** The slot of the associated thread in <tt>waitQueue</tt>. */
+		int slot = -1;
+	}
+
+	/**
+	 * Tests ticket transfer through locks and join, and that lotteries are
+	 * won in proportion to tickets. Must be run with this scheduler selected.
+	 */
+	public static void selfTest() {
+		Lib.assertTrue(ThreadedKernel.scheduler instanceof LotteryScheduler);
+		final LotteryScheduler scheduler = (LotteryScheduler) ThreadedKernel.scheduler;
+
+		KThread low = new KThread().setName("low");
+		KThread middle = new KThread().setName("middle");
+		KThread high = new KThread().setName("high");
+
+		boolean intStatus = Machine.interrupt().disable();
+
+		scheduler.setPriority(low, 1);
+		scheduler.setPriority(middle, 2);
+		scheduler.setPriority(high, 5);
+
+		// low holds a, middle holds b and waits for a, high waits for b
+		ThreadQueue a = scheduler.newThreadQueue(true);
+		ThreadQueue b = scheduler.newThreadQueue(true);
+		a.acquire(low);
+		b.acquire(middle);
+		a.waitForAccess(middle);
+		b.waitForAccess(high);
+		Lib.assertTrue(scheduler.getEffectivePriority(low) == 8
+				&& scheduler.getEffectivePriority(middle) == 7,
+				"tickets not transferred through a chain of locks");
+
+		scheduler.setPriority(high, 10);
+		Lib.assertTrue(scheduler.getEffectivePriority(low) == 13);
+
+		Lib.assertTrue(b.cancelThread(high));
+		Lib.assertTrue(scheduler.getEffectivePriority(low) == 3);
+
+		Lib.assertTrue(a.nextThread() == middle);
+		Lib.assertTrue(scheduler.getEffectivePriority(low) == 1
+				&& scheduler.getEffectivePriority(middle) == 2);
+
+		// wins should be roughly proportional to tickets
+		ThreadQueue queue = scheduler.newThreadQueue(false);
+		KThread[] threads = { low, middle, high };
+		int[] tickets = { 1, 3, 6 };
+		int[] wins = new int[threads.length];
+		for (int i = 0; i < threads.length; i++) {
+			scheduler.setPriority(threads[i], tickets[i]);
+			queue.waitForAccess(threads[i]);
+		}
+		int draws = 10000;
+		for (int i = 0; i < draws; i++) {
+			KThread winner = queue.nextThread();
+			for (int j = 0; j < threads.length; j++) {
+				if (threads[j] == winner)
+					wins[j]++;
+			}
+			queue.waitForAccess(winner);
+		}
+		for (int i = 0; i < threads.length; i++) {
+			double expected = draws * tickets[i] / 10.0;
+			Lib.assertTrue(Math.abs(wins[i] - expected) < expected / 10,
+					"lottery not proportional to tickets");
+		}
+
+		Machine.interrupt().restore(intStatus);
+
+		// a joined thread holds the tickets of the thread joining it
+		final int[] joined = new int[1];
+		KThread child = new KThread(new Runnable() {
+			public void run() {
+				for (int i = 0; i < 1000 && joined[0] != 7; i++) {
+					boolean intStatus = Machine.interrupt().disable();
+					joined[0] = scheduler.getEffectivePriority();
+					Machine.interrupt().restore(intStatus);
+					KThread.yield();
+				}
+			}
+		}).setName("child");
+
+		intStatus = Machine.interrupt().disable();
+		int oldTickets = scheduler.getPriority();
+		scheduler.setPriority(6);
+		Machine.interrupt().restore(intStatus);
+
+		child.fork();
+		child.join();
+		Lib.assertTrue(joined[0] == 7, "tickets not transferred through join");
+
+		intStatus = Machine.interrupt().disable();
+		scheduler.setPriority(oldTickets);
+		Machine.interrupt().restore(intStatus);
 	}
 }
@@ -0,0 +1,373 @@
+package nachos.threads;
+
+import nachos.machine.*;
+
+import java.util.LinkedList;
+
+/**
+ * A multi-level feedback queue scheduler. Threads are kept in a number of
+ * FIFO queues, one per level, and the next thread is always taken from the
+ * highest non-empty level. Threads at lower levels are given longer time
+ * slices.
+ *
+ * <p>
+ * A new thread starts at the top level. A thread that uses up its time slice
+ * is moved down a level, so CPU-bound threads sink to the bottom. A thread that
+ * blocks (on I/O, a lock, a condition variable, the alarm, or a join) is moved
+ * up a level when it wakes, so interactive threads stay near the top. Every so
+ * often every thread is moved back to the top level, so threads at the bottom
+ * cannot starve.
+ *
+ * <p>
+ * Time slices are enforced by the timer interrupt handler in <tt>Alarm</tt>,
+ * through <tt>preemptCurrentThread()</tt>. The running thread is preempted
+ * when its slice has run out, or when a thread at a higher level is waiting
+ * to run.
+ *
+ * <p>
+ * The scheduler is configured with these keys:
+ *
+ * <ul>
+ * <li><tt>MLFQScheduler.levels</tt>: the number of levels (3 by default).
+ * <li><tt>MLFQScheduler.quantum</tt>: the time slice at the top level, in
+ * ticks (500 by default). Each level down doubles it.
+ * <li><tt>MLFQScheduler.boostInterval</tt>: how often every thread is moved
+ * back to the top level, in ticks (50000 by default).
+ * </ul>
+ *
+ * <p>
+ * Priority is not transferred through locks or joins.
+ */
+public class MLFQScheduler extends Scheduler {
+	/**
+	 * Allocate a new multi-level feedback queue scheduler.
+	 */
+	public MLFQScheduler() {
+		levels = Config.getInteger("MLFQScheduler.levels", 3);
+		quantum = Config.getInteger("MLFQScheduler.quantum", Stats.TimerTicks);
+		boostInterval = Config.getInteger("MLFQScheduler.boostInterval",
+				100 * Stats.TimerTicks);
+
+		Lib.assertTrue(levels > 0 && levels < 32 && quantum > 0
+				&& boostInterval > 0);
+	}
+
+	/**
+	 * Allocate a new multi-level thread queue.
+	 *
+	 * @param transferPriority ignored. This scheduler does not donate
+	 * priority.
+	 * @return a new multi-level thread queue.
+	 */
+	public ThreadQueue newThreadQueue(boolean transferPriority) {
+		return new FeedbackQueue();
+	}
+
+	/**
+	 * Return the priority of the specified thread: <tt>levels - 1</tt> at the
+	 * top level, down to 0 at the bottom level.
+	 */
+	public int getPriority(KThread thread) {
+		Lib.assertTrue(Machine.interrupt().disabled());
+
+		return levels - 1 - getThreadState(thread).getLevel();
+	}
+
+	public int getEffectivePriority(KThread thread) {
+		return getPriority(thread);
+	}
+
+	/**
+	 * Preempt the current thread if it has used up its time slice, moving it
+	 * down a level, or if a thread at a higher level is waiting to run.
+	 */
+	public boolean preemptCurrentThread() {
+		Lib.assertTrue(Machine.interrupt().disabled());
+
+		ThreadState state = getThreadState(KThread.currentThread());
+		int level = state.getLevel();
+		long now = Machine.timer().getTime();
+		long slice = getQuantum(level);
+
+		if (state.used + (now - state.dispatchTime) >= slice) {
+			if (level < levels - 1)
+				state.level = level + 1;
+			state.used = 0;
+			state.dispatchTime = now;
+			return true;
+		}
+
+		// the last queue this thread was taken from is the ready queue
+		if (state.readyQueue != null
+				&& state.readyQueue.highestLevel() < level)
+			return true;
+
+		// a tickless timer must still interrupt when the slice runs out
+		Machine.timer().armInterrupt(
+				state.dispatchTime + slice - state.used);
+
+		return false;
+	}
+
+	/**
+	 * Return the time slice of a thread at the specified level.
+	 */
+	private long getQuantum(int level) {
+		return (long) quantum << level;
+	}
+
+	/**
+	 * Return the number of priority boosts that should have happened by now.
+	 */
+	private long getEpoch() {
+		return Machine.timer().getTime() / boostInterval;
+	}
+
+	/**
+	 * Return the scheduling state of the specified thread.
+	 *
+	 * @param thread the thread whose scheduling state to return.
+	 * @return the scheduling state of the specified thread.
+	 */
+	protected ThreadState getThreadState(KThread thread) {
+		if (thread.schedulingState == null)
+			thread.schedulingState = new ThreadState();
+
+		return (ThreadState) thread.schedulingState;
+	}
+
+	private class FeedbackQueue extends ThreadQueue {
+		@SuppressWarnings("unchecked")
+		FeedbackQueue() {
+			queues = (LinkedList<KThread>[]) new LinkedList<?>[levels];
+			for (int i = 0; i < levels; i++)
+				queues[i] = new LinkedList<KThread>();
+		}
+
+		/**
+		 * Add a thread to the end of the queue for its level. A thread that
+		 * is not the current thread is being woken up, so it moves up a
+		 * level first. The current thread is yielding or blocking, so it is
+		 * charged for the time it has run.
+		 *
+		 * @param thread the thread to append to the queue.
+		 */
+		public void waitForAccess(KThread thread) {
+			Lib.assertTrue(Machine.interrupt().disabled());
+
+			ThreadState state = getThreadState(thread);
+			if (thread == KThread.currentThread())
+				state.used += Machine.timer().getTime() - state.dispatchTime;
+			else
+				state.promote();
+
+			boost();
+			queues[state.getLevel()].add(thread);
+		}
+
+		/**
+		 * Remove the first thread from the highest non-empty level.
+		 *
+		 * @return the chosen thread, or <tt>null</tt> if the queue is empty.
+		 */
+		public KThread nextThread() {
+			Lib.assertTrue(Machine.interrupt().disabled());
+
+			boost();
+
+			int level = highestLevel();
+			if (level == levels)
+				return null;
+
+			KThread thread = queues[level].removeFirst();
+
+			// only the ready queue's choice runs right away, and it is
+			// always the last queue a thread is taken from before it runs
+			ThreadState state = getThreadState(thread);
+			state.dispatchTime = Machine.timer().getTime();
+			state.readyQueue = this;
+
+			return thread;
+		}
+
+		/**
+		 * Cancel the thread on the queue by removing it.
+		 *
+		 * @return <tt>true</tt> if thread was in the queue and has been
+		 * removed, or <tt>false</tt> otherwise.
+		 */
+		public boolean cancelThread(KThread thread) {
+			Lib.assertTrue(Machine.interrupt().disabled());
+
+			for (int i = 0; i < levels; i++) {
+				if (queues[i].remove(thread))
+					return true;
+			}
+
+			return false;
+		}
+
+		/**
+		 * The specified thread has received exclusive access, without using
+		 * <tt>waitForAccess()</tt> or <tt>nextThread()</tt>. Assert that no
+		 * threads are waiting for access.
+		 */
+		public void acquire(KThread thread) {
+			Lib.assertTrue(Machine.interrupt().disabled());
+
+			Lib.assertTrue(highestLevel() == levels);
+		}
+
+		/**
+		 * Print out the contents of each level.
+		 */
+		public void print() {
+			Lib.assertTrue(Machine.interrupt().disabled());
+
+			for (int i = 0; i < levels; i++)
+				System.out.print(i + ": " + queues[i] + " ");
+			System.out.println();
+		}
+
+		/**
+		 * Return the highest level with a waiting thread, or <tt>levels</tt>
+		 * if there is none.
+		 */
+		int highestLevel() {
+			int level = 0;
+			while (level < levels && queues[level].isEmpty())
+				level++;
+
+			return level;
+		}
+
+		/**
+		 * If a boost is due, move every waiting thread to the top level, in
+		 * level order. The levels recorded in the threads' states are reset
+		 * when they are next looked at.
+		 */
+		private void boost() {
+			long epoch = getEpoch();
+			if (epoch == boostEpoch)
+				return;
+
+			boostEpoch = epoch;
+			for (int i = 1; i < levels; i++) {
+				queues[0].addAll(queues[i]);
+				queues[i].clear();
+			}
+		}
+
+		private LinkedList<KThread>[] queues;
+
+		private long boostEpoch = getEpoch();
+	}
+
+	/**
+	 * The scheduling state of a thread: its level, and how much of its
+	 * current time slice it has used.
+	 */
+	protected class ThreadState {
+		/**
+		 * Return the level of the associated thread, first moving it to the
+		 * top level if a boost has happened since it was last looked at.
+		 */
+		int getLevel() {
+			long now = getEpoch();
+			if (epoch != now) {
+				epoch = now;
+				level = 0;
+				used = 0;
+			}
+
+			return level;
+		}
+
+		/**
+		 * Move the associated thread up a level, with a fresh time slice.
+		 */
+		void promote() {
+			if (getLevel() > 0)
+				level--;
+			used = 0;
+		}
+
+		/** The level of the associated thread, 0 being the highest. */
+		int level = 0;
+
+		/** The ticks used of the current time slice, before the last dispatch. */
+		long used = 0;
+
+		/** The time the associated thread was last dispatched. */
+		long dispatchTime = Machine.timer().getTime();
+
+		/** The ready queue, once the associated thread has been dispatched. */
+		FeedbackQueue readyQueue = null;
+
+		/** The number of boosts accounted for in <tt>level</tt>. */
+		long epoch = getEpoch();
+	}
+
+	/**
+	 * Tests that CPU-bound threads sink to the bottom level while a thread
+	 * that sleeps stays at the top. Must be run with this scheduler selected.
+	 */
+	public static void selfTest() {
+		Lib.assertTrue(ThreadedKernel.scheduler instanceof MLFQScheduler);
+		final MLFQScheduler scheduler = (MLFQScheduler) ThreadedKernel.scheduler;
+
+		final boolean[] done = new boolean[1];
+		final int[] bottom = new int[1];
+		KThread[] hogs = new KThread[2];
+
+		for (int i = 0; i < hogs.length; i++) {
+			hogs[i] = new KThread(new Runnable() {
+				public void run() {
+					while (!done[0]) {
+						// let time pass
+						Machine.interrupt().disable();
+						Machine.interrupt().enable();
+					}
+				}
+			}).setName("hog " + i);
+			hogs[i].fork();
+		}
+
+		final KThread[] hogsToCheck = hogs;
+		KThread sleeper = new KThread(new Runnable() {
+			public void run() {
+				for (int i = 0; i < 20; i++) {
+					ThreadedKernel.alarm.waitUntil(2 * scheduler.quantum);
+
+					boolean intStatus = Machine.interrupt().disable();
+					Lib.assertTrue(
+							scheduler.getPriority() == scheduler.levels - 1,
+							"sleeping thread left the top level");
+					for (int j = 0; j < hogsToCheck.length; j++) {
+						if (scheduler.getPriority(hogsToCheck[j]) == 0)
+							bottom[0]++;
+					}
+					Machine.interrupt().restore(intStatus);
+				}
+			}
+		}).setName("sleeper");
+		sleeper.fork();
+
+		sleeper.join();
+		done[0] = true;
+		for (int i = 0; i < hogs.length; i++)
+			hogs[i].join();
+
+		Lib.assertTrue(scheduler.levels == 1 || bottom[0] > 0,
+				"CPU-bound threads never reached the bottom level");
+	}
+
+	/** The number of levels. */
+	private int levels;
+
+	/** The time slice at the top level, in ticks. */
+	private int quantum;
+
+	/** The time between priority boosts, in ticks. */
+	private int boostInterval;
+}
@@ -2,9 +2,7 @@ package nachos.threads;
 
 import nachos.machine.*;
 
-import java.util.TreeSet;
-import java.util.HashSet;
-import java.util.Iterator;
+import java.util.LinkedList;
 
 /**
  * A scheduler that chooses threads based on their priorities.
@@ -127,6 +125,13 @@ public class PriorityScheduler extends Scheduler {
 
 	/**
 	 * A <tt>ThreadQueue</tt> that sorts threads by priority.
+	 * 
+	 * <p>
+	 * The waiting threads are kept in a binary heap, ordered by effective
+	 * priority and then by the order in which they started waiting. Each
+	 * thread's state records its index in the heap, so a thread whose
+	 * effective priority changes while it waits can be moved to its new place,
+	 * or removed, in logarithmic time.
 	 */
 	protected class PriorityQueue extends ThreadQueue {
 		PriorityQueue(boolean transferPriority) {
@@ -145,14 +150,33 @@ public class PriorityScheduler extends Scheduler {
 
 		public KThread nextThread() {
 			Lib.assertTrue(Machine.interrupt().disabled());
-			// implement me
-			return null;
+
+			ThreadState next = pickNextThread();
+			if (next == null) {
+				// nobody gets access, so nobody is owed the donations
+				if (owner != null)
+					owner.release(this);
+				return null;
+			}
+
+			remove(next);
+			next.acquire(this);
+
+			return next.thread;
 		}
 
 		public boolean cancelThread(KThread thread) {
 			Lib.assertTrue(Machine.interrupt().disabled());
-			// implement me
-			return false;
+
+			ThreadState state = getThreadState(thread);
+			if (state.waitQueue != this)
+				return false;
+
+			remove(state);
+			if (transferPriority && owner != null)
+				owner.updateEffectivePriority();
+
+			return true;
 		}
 
 		/**
@@ -162,13 +186,118 @@ public class PriorityScheduler extends Scheduler {
 		 * @return the next thread that <tt>nextThread()</tt> would return.
 		 */
 		protected ThreadState pickNextThread() {
-			// implement me
-			return null;
+			return (size > 0) ? heap[0] : null;
 		}
 
 		public void print() {
 			Lib.assertTrue(Machine.interrupt().disabled());
-			// implement me (if you want)
+
+			for (int i = 0; i < size; i++)
+				System.out.print(heap[i].thread + " ("
+						+ heap[i].effectivePriority + ") ");
+			System.out.println();
+		}
+
+		/**
+		 * Add a thread to the heap.
+		 */
+		void add(ThreadState state) {
+			if (size == heap.length) {
+				ThreadState[] larger = new ThreadState[size * 2];
+				System.arraycopy(heap, 0, larger, 0, size);
+				heap = larger;
+			}
+
+			heap[size] = state;
+			state.heapIndex = size++;
+			siftUp(state.heapIndex);
+		}
+
+		/**
+		 * Remove a waiting thread from the heap, wherever it is.
+		 */
+		void remove(ThreadState state) {
+			Lib.assertTrue(state.waitQueue == this);
+
+			int index = state.heapIndex;
+			ThreadState last = heap[--size];
+			heap[size] = null;
+
+			if (last != state) {
+				heap[index] = last;
+				last.heapIndex = index;
+				siftUp(index);
+				siftDown(last.heapIndex);
+			}
+
+			state.waitQueue = null;
+			state.heapIndex = -1;
+		}
+
+		/**
+		 * Move a waiting thread whose effective priority has changed to its
+		 * new place in the heap.
+		 */
+		void update(ThreadState state) {
+			siftUp(state.heapIndex);
+			siftDown(state.heapIndex);
+		}
+
+		/**
+		 * Return the highest effective priority of the waiting threads, or
+		 * the minimum priority if there are none.
+		 */
+		int getDonation() {
+			return (size > 0) ? heap[0].effectivePriority : priorityMinimum;
+		}
+
+		/**
+		 * Return <tt>true</tt> if <i>a</i> should receive access before
+		 * <i>b</i>.
+		 */
+		private boolean before(ThreadState a, ThreadState b) {
+			if (a.effectivePriority != b.effectivePriority)
+				return a.effectivePriority > b.effectivePriority;
+
+			return a.waitTime < b.waitTime;
+		}
+
+		private void siftUp(int index) {
+			ThreadState state = heap[index];
+
+			while (index > 0) {
+				int parent = (index - 1) / 2;
+				if (!before(state, heap[parent]))
+					break;
+
+				heap[index] = heap[parent];
+				heap[index].heapIndex = index;
+				index = parent;
+			}
+
+			heap[index] = state;
+			state.heapIndex = index;
+		}
+
+		private void siftDown(int index) {
+			ThreadState state = heap[index];
+
+			while (true) {
+				int child = 2 * index + 1;
+				if (child >= size)
+					break;
+				if (child + 1 < size && before(heap[child + 1], heap[child]))
+					child++;
+				if (!before(heap[child], state))
+					break;
+
+				heap[index] = heap[child];
+				heap[index].heapIndex = index;
+				index = child;
+			}
+
+			heap[index] = state;
+			state.heapIndex = index;
 		}
 
 		/**
@@ -176,6 +305,13 @@ public class PriorityScheduler extends Scheduler {
 		 * threads to the owning thread.
 		 */
 		public boolean transferPriority;
+
+		/** The thread that has access, if this queue transfers priority. */
+		ThreadState owner = null;
+
+		private ThreadState[] heap = new ThreadState[4];
+
+		private int size = 0;
 	}
 
 	/**
@@ -183,6 +319,13 @@ public class PriorityScheduler extends Scheduler {
 	 * priority, its effective priority, any objects it owns, and the queue it's
 	 * waiting for, if any.
 	 * 
+	 * <p>
+	 * The effective priority is cached. It is only recomputed when something
+	 * it depends on changes: the thread's own priority, or the set of threads
+	 * waiting on a queue the thread owns. A change is then passed along the
+	 * chain of owners, and stops as soon as some thread's effective priority
+	 * comes out the same as before.
+	 * 
 	 * @see nachos.threads.KThread#schedulingState
 	 */
 	protected class ThreadState {
@@ -213,8 +356,7 @@ public class PriorityScheduler extends Scheduler {
 		 * @return the effective priority of the associated thread.
 		 */
 		public int getEffectivePriority() {
-			// implement me
-			return priority;
+			return effectivePriority;
 		}
 
 		/**
@@ -228,7 +370,7 @@ public class PriorityScheduler extends Scheduler {
 
 			this.priority = priority;
 
-			// implement me
+			updateEffectivePriority();
 		}
 
 		/**
@@ -244,7 +386,15 @@ public class PriorityScheduler extends Scheduler {
 		 * @see nachos.threads.ThreadQueue#waitForAccess
 		 */
 		public void waitForAccess(PriorityQueue waitQueue) {
-			// implement me
+			Lib.assertTrue(this.waitQueue == null);
+
+			this.waitQueue = waitQueue;
+			waitTime = numWaits++;
+			waitQueue.add(this);
+
+			if (waitQueue.transferPriority && waitQueue.owner != null
+					&& effectivePriority > waitQueue.owner.effectivePriority)
+				waitQueue.owner.updateEffectivePriority();
 		}
 
 		/**
@@ -258,7 +408,57 @@ public class PriorityScheduler extends Scheduler {
 		 * @see nachos.threads.ThreadQueue#nextThread
 		 */
 		public void acquire(PriorityQueue waitQueue) {
-			// implement me
+			if (!waitQueue.transferPriority)
+				return;
+
+			if (waitQueue.owner != null)
+				waitQueue.owner.release(waitQueue);
+
+			waitQueue.owner = this;
+			owned.add(waitQueue);
+
+			updateEffectivePriority();
+		}
+
+		/**
+		 * Called when the associated thread no longer has access to whatever
+		 * is guarded by <tt>waitQueue</tt>, so it stops receiving the
+		 * donations of the threads waiting there.
+		 */
+		void release(PriorityQueue waitQueue) {
+			Lib.assertTrue(waitQueue.owner == this);
+
+			waitQueue.owner = null;
+			owned.remove(waitQueue);
+
+			updateEffectivePriority();
+		}
+
+		/**
+		 * Recompute the effective priority of the associated thread. If it
+		 * has changed, move the thread within the queue it is waiting on, and
+		 * do the same for the owner of that queue, and so on.
+		 */
+		void updateEffectivePriority() {
+			ThreadState state = this;
+
+			while (state != null) {
+				int effective = state.priority;
+				for (PriorityQueue queue : state.owned)
+					effective = Math.max(effective, queue.getDonation());
+
+				if (effective == state.effectivePriority)
+					return;
+
+				state.effectivePriority = effective;
+
+				PriorityQueue queue = state.waitQueue;
+				if (queue == null)
+					return;
+
+				queue.update(state);
+				state = queue.transferPriority ? queue.owner : null;
+			}
 		}
 
 		/** The thread with which this object is associated. */
@@ -266,5 +466,123 @@ public class PriorityScheduler extends Scheduler {
 
 		/** The priority of the associated thread. */
 		protected int priority;
+
+		/** The cached effective priority of the associated thread. */
+		protected int effectivePriority = priorityMinimum - 1;
+
+		/** The queue the associated thread is waiting on, if any. */
+		protected PriorityQueue waitQueue = null;
+
+		/** The queues that transfer priority to the associated thread. */
+		protected LinkedList<PriorityQueue> owned = new LinkedList<PriorityQueue>();
+
+		/** The position of the associated thread in <tt>waitQueue</tt>. */
+		int heapIndex = -1;
+
+		/** When the associated thread started waiting on <tt>waitQueue</tt>. */
+		long waitTime;
 	}
+
+	/**
+	 * Tests priority donation through chains of locks, and through join. Must
+	 * be run with this scheduler selected.
+	 */
+	public static void selfTest() {
+		Lib.assertTrue(ThreadedKernel.scheduler instanceof PriorityScheduler);
+		final PriorityScheduler scheduler = (PriorityScheduler) ThreadedKernel.scheduler;
+
+		boolean intStatus = Machine.interrupt().disable();
+		int oldPriority = scheduler.getPriority();
+		scheduler.setPriority(priorityMinimum);
+		Machine.interrupt().restore(intStatus);
+
+		// low holds a, middle holds b and waits for a, high waits for b
+		final Lock a = new Lock(), b = new Lock();
+		final Semaphore lowHolds = new Semaphore(0), middleHolds = new Semaphore(0);
+		final Semaphore go = new Semaphore(0);
+
+		KThread low = new KThread(new Runnable() {
+			public void run() {
+				a.acquire();
+				lowHolds.V();
+				go.P();
+				a.release();
+			}
+		}).setName("low");
+		KThread middle = new KThread(new Runnable() {
+			public void run() {
+				lowHolds.P();
+				b.acquire();
+				middleHolds.V();
+				a.acquire();
+				a.release();
+				b.release();
+			}
+		}).setName("middle");
+		KThread high = new KThread(new Runnable() {
+			public void run() {
+				middleHolds.P();
+				b.acquire();
+				b.release();
+			}
+		}).setName("high");
+
+		intStatus = Machine.interrupt().disable();
+		scheduler.setPriority(low, 1);
+		scheduler.setPriority(middle, 2);
+		scheduler.setPriority(high, 5);
+		Machine.interrupt().restore(intStatus);
+
+		low.fork();
+		middle.fork();
+		high.fork();
+
+		// every other thread runs until it blocks before this one runs again
+		KThread.yield();
+
+		intStatus = Machine.interrupt().disable();
+		Lib.assertTrue(scheduler.getEffectivePriority(low) == 5
+				&& scheduler.getEffectivePriority(middle) == 5,
+				"priority not donated through a chain of locks");
+		Machine.interrupt().restore(intStatus);
+
+		go.V();
+		high.join();
+		middle.join();
+		low.join();
+
+		intStatus = Machine.interrupt().disable();
+		Lib.assertTrue(scheduler.getEffectivePriority(low) == 1,
+				"donated priority not returned");
+		Machine.interrupt().restore(intStatus);
+
+		// a thread joined by a higher priority thread runs at that priority
+		final int[] joined = new int[1];
+		final Semaphore started = new Semaphore(0);
+		KThread child = new KThread(new Runnable() {
+			public void run() {
+				started.P();
+				boolean intStatus = Machine.interrupt().disable();
+				joined[0] = scheduler.getEffectivePriority();
+				Machine.interrupt().restore(intStatus);
+			}
+		}).setName("child");
+		child.fork();
+		KThread.yield();
+
+		intStatus = Machine.interrupt().disable();
+		scheduler.setPriority(6);
+		Machine.interrupt().restore(intStatus);
+
+		started.V();
+		child.join();
+		Lib.assertTrue(joined[0] == 6, "priority not donated through join");
+
+		intStatus = Machine.interrupt().disable();
+		scheduler.setPriority(oldPriority);
+		Machine.interrupt().restore(intStatus);
+	}
+
+	/** The number of times a thread has started waiting on a queue. */
+	private long numWaits = 0;
 }
@@ -1,36 +1,28 @@
 package nachos.threads;
 
 import nachos.machine.*;
-import java.util.HashMap;
-import java.util.LinkedList;
-
-
 
 /**
  * A <i>Rendezvous</i> allows threads to synchronously exchange values.
+ *
+ * <p>
+ * At most one thread can be waiting at each tag, since the next thread to
+ * arrive pairs off with it.  Waiting threads are kept in an open-addressing
+ * table keyed directly by the tag, so tags and values are never boxed, and
+ * a tag's slot is freed as soon as its waiter is paired.  The records that
+ * waiting threads sleep on are recycled, so the rendezvous stops allocating
+ * once it has seen its peak number of concurrent waiters.
  */
 public class Rendezvous {
     /**
      * Allocate a new Rendezvous.
      */
-
-    private Lock lock;
-    private Condition threadCondition;
-
-    private HashMap<Integer, LinkedList<Integer>> waitingValues;
-    private HashMap<Integer, LinkedList<KThread>> waitingThreads = new HashMap<>();
-
-
     public Rendezvous() {
         lock = new Lock();
-        threadCondition = new Condition(lock);
-        waitingValues = new HashMap<>();
-        waitingThreads = new HashMap<>();
+        keys = new int[initialCapacity];
+        waiters = new Waiter[initialCapacity];
     }
 
-
-
-
     /**
      * Synchronously exchange a value with another thread.  The first
      * thread A (with value X) to exhange will block waiting for
@@ -47,75 +39,206 @@ public class Rendezvous {
      * @param tag the synchronization tag.
      * @param value the integer to exchange.
      */
+    public int exchange(int tag, int value) {
+        lock.acquire();
 
+        Waiter partner = takeWaiter(tag);
+        if (partner != null) {
+            Lib.assertTrue(partner.array == null,
+                           "exchange(int) paired with exchange(int[])");
+            int result = partner.value;
+            partner.value = value;
+            partner.paired.V();
 
+            lock.release();
+            return result;
+        }
+
+        Waiter waiter = wait(tag);
+        waiter.value = value;
+        lock.release();
+
+        waiter.paired.P();
+
+        int result = waiter.value;
+        release(waiter);
+        return result;
+    }
+
+    /**
+     * Synchronously exchange an array with another thread, in the same way
+     * as <tt>exchange(int, int)</tt>.  The arrays themselves are swapped,
+     * not copied: each thread gets back the array the other passed in.
+     * Both threads at a tag must use this variant.
+     *
+     * @param tag the synchronization tag.
+     * @param values the array to exchange.
+     * @return the array passed in by the other thread.
+     */
+    public int[] exchange(int tag, int[] values) {
+        Lib.assertTrue(values != null);
 
-    public int exchange(int tag, int value) {
         lock.acquire();
-    
-        waitingValues.putIfAbsent(tag, new LinkedList<>());
-        LinkedList<Integer> valuesForTag = waitingValues.get(tag);
-    
-        waitingThreads.putIfAbsent(tag, new LinkedList<>());
-        LinkedList<KThread> threadsForTag = waitingThreads.get(tag);
-    
-        valuesForTag.add(value);
-        threadsForTag.add(KThread.currentThread());
-    
-        //System.out.println("Thread " + KThread.currentThread().getName() + " added to waiting list for tag " + tag);
-    
-        // If there are more than 1 thread for this tag, perform the exchange
-        if (threadsForTag.size() > 1) {
-            KThread counterpart = threadsForTag.getFirst();
-            
-            if (counterpart == KThread.currentThread()) {  // If current thread is at the head, pick the other
-                counterpart = threadsForTag.removeLast();
-            } else {
-                counterpart = threadsForTag.removeFirst();
-            }
-    
-            int counterpartValue = valuesForTag.removeFirst();  // Get value of the counterpart thread
-            int myValue = valuesForTag.removeFirst();  // Get value of current thread
-    
-            valuesForTag.add(myValue);  // Deposit my value for counterpart to collect
-    
-            threadCondition.wake();  // Wake up the counterpart thread
-    
-            //System.out.println("Thread " + KThread.currentThread().getName() + " exchanging with " + counterpart.getName());
-    
-            lock.release();
-            return counterpartValue;
-        } else {
-            //System.out.println("Thread " + KThread.currentThread().getName() + " going to sleep for tag " + tag);
-            threadCondition.sleep();
-            //System.out.println("Thread " + KThread.currentThread().getName() + " woken up for tag " + tag);
-    
-            int returnVal = valuesForTag.removeFirst();
-            threadsForTag.removeFirst();
-    
+
+        Waiter partner = takeWaiter(tag);
+        if (partner != null) {
+            Lib.assertTrue(partner.array != null,
+                           "exchange(int[]) paired with exchange(int)");
+            int[] result = partner.array;
+            partner.array = values;
+            partner.paired.V();
+
             lock.release();
-            return returnVal;
+            return result;
         }
+
+        Waiter waiter = wait(tag);
+        waiter.array = values;
+        lock.release();
+
+        waiter.paired.P();
+
+        int[] result = waiter.array;
+        release(waiter);
+        return result;
     }
-    
-    
-    
-    
-    
 
+    /**
+     * Remove and return the thread waiting at <i>tag</i>, if any.  The lock
+     * must be held.
+     */
+    private Waiter takeWaiter(int tag) {
+        int mask = keys.length - 1;
+        int slot = hash(tag) & mask;
 
+        while (waiters[slot] != null) {
+            if (keys[slot] == tag) {
+                Waiter waiter = waiters[slot];
+                removeSlot(slot);
+                return waiter;
+            }
+            slot = (slot + 1) & mask;
+        }
 
+        return null;
+    }
 
+    /**
+     * Enter the current thread in the table as the waiter at <i>tag</i>,
+     * which must be free.  The lock must be held.
+     */
+    private Waiter wait(int tag) {
+        if ((count + 1) * 2 > keys.length)
+            resize(keys.length * 2);
 
+        Waiter waiter = free;
+        if (waiter != null)
+            free = waiter.next;
+        else
+            waiter = new Waiter();
+        waiter.next = null;
 
-    
-    
-    
-    
-    
-    
-    
-    
+        int mask = keys.length - 1;
+        int slot = hash(tag) & mask;
+        while (waiters[slot] != null)
+            slot = (slot + 1) & mask;
+
+        keys[slot] = tag;
+        waiters[slot] = waiter;
+        count++;
+
+        return waiter;
+    }
+
+    /**
+     * Return a waiter's record to the free list once it has been paired.
+     */
+    private void release(Waiter waiter) {
+        lock.acquire();
+        waiter.array = null;
+        waiter.next = free;
+        free = waiter;
+        lock.release();
+    }
+
+    /**
+     * Empty a slot, moving later entries of the same probe run back so that
+     * lookups never need tombstones.
+     */
+    private void removeSlot(int slot) {
+        int mask = keys.length - 1;
+
+        waiters[slot] = null;
+        count--;
+
+        int next = (slot + 1) & mask;
+        while (waiters[next] != null) {
+            int home = hash(keys[next]) & mask;
+
+            // move the entry if its home is not in (slot, next]
+            if (((next - home) & mask) >= ((next - slot) & mask)) {
+                keys[slot] = keys[next];
+                waiters[slot] = waiters[next];
+                waiters[next] = null;
+                slot = next;
+            }
+            next = (next + 1) & mask;
+        }
+    }
+
+    private void resize(int capacity) {
+        int[] oldKeys = keys;
+        Waiter[] oldWaiters = waiters;
+
+        keys = new int[capacity];
+        waiters = new Waiter[capacity];
+
+        int mask = capacity - 1;
+        for (int i = 0; i < oldKeys.length; i++) {
+            if (oldWaiters[i] != null) {
+                int slot = hash(oldKeys[i]) & mask;
+                while (waiters[slot] != null)
+                    slot = (slot + 1) & mask;
+                keys[slot] = oldKeys[i];
+                waiters[slot] = oldWaiters[i];
+            }
+        }
+    }
+
+    private static int hash(int tag) {
+        int h = tag * 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+
+    /**
+     * The record a waiting thread sleeps on, holding the value or array it
+     * offers until its partner replaces it with its own.
+     */
+    private static class Waiter {
+        Semaphore paired = new Semaphore(0);
+
+        int value;
+
+        int[] array;
+
+        /** The next record on the free list. */
+        Waiter next;
+    }
+
+    private Lock lock;
+
+    /** The tag of each occupied slot in <tt>waiters</tt>. */
+    private int[] keys;
+
+    /** The thread waiting at each tag, or <tt>null</tt> for a free slot. */
+    private Waiter[] waiters;
+
+    private int count = 0;
+
+    /** Waiter records available for reuse. */
+    private Waiter free = null;
+
+    private static final int initialCapacity = 16;
 
     // Place Rendezvous test code inside of the Rendezvous class.
 
@@ -277,10 +400,48 @@ public class Rendezvous {
 
 
 
+    /**
+     * Pairs up many threads over many tags at once, half of them swapping
+     * arrays, and checks that every thread got its partner's value.
+     */
+    public static void rendezTest4() {
+        final Rendezvous r = new Rendezvous();
+        final int tags = 50;
+
+        KThread[] threads = new KThread[tags * 2];
+        for (int i = 0; i < threads.length; i++) {
+            final int tag = i % tags;
+            final int side = i / tags;
+            threads[i] = new KThread(new Runnable() {
+                public void run() {
+                    int mine = tag * 2 + side;
+                    int other = tag * 2 + (1 - side);
+                    if (tag % 2 == 0) {
+                        int recv = r.exchange(tag * 7919, mine);
+                        Lib.assertTrue(recv == other, "Was expecting " + other + " but received " + recv);
+                    }
+                    else {
+                        int[] recv = r.exchange(-tag, new int[] { mine, -mine });
+                        Lib.assertTrue(recv[0] == other && recv[1] == -other, "Was expecting " + other + " but received " + recv[0]);
+                    }
+                }
+            });
+            threads[i].setName("r" + i);
+        }
+
+        for (int i = 0; i < threads.length; i++)
+            threads[i].fork();
+        for (int i = 0; i < threads.length; i++)
+            threads[i].join();
+
+        Lib.assertTrue(r.count == 0, "table should be empty once everyone is paired");
+    }
+
         public static void selfTest() {
         // place calls to your Rendezvous tests that you implement here
         //rendezTest1();
         //rendezTest2();
+        rendezTest4();
         rendezTest3();
         }
 }
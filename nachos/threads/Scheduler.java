@@ -50,6 +50,18 @@ public abstract class Scheduler {
 	 */
 	public abstract ThreadQueue newThreadQueue(boolean transferPriority);
 
+	/**
+	 * Allocate the ready queue. <tt>KThread</tt> calls this once, to create
+	 * the queue of threads waiting for the processor, so a scheduler that
+	 * treats that queue specially can recognize it. The default is a queue
+	 * from <tt>newThreadQueue(false)</tt>.
+	 * 
+	 * @return the new ready queue.
+	 */
+	public ThreadQueue newReadyQueue() {
+		return newThreadQueue(false);
+	}
+
 	/**
 	 * Get the priority of the specified thread. Must be called with interrupts
 	 * disabled.
@@ -129,6 +141,20 @@ public abstract class Scheduler {
 		setPriority(KThread.currentThread(), priority);
 	}
 
+	/**
+	 * Called by the timer interrupt handler to decide whether the current
+	 * thread should give up the processor. A scheduler whose time slices are
+	 * longer than the interval between timer interrupts returns
+	 * <tt>false</tt> until the current thread's slice has run out. Must be
+	 * called with interrupts disabled.
+	 * 
+	 * @return <tt>true</tt> if the current thread should yield.
+	 */
+	public boolean preemptCurrentThread() {
+		Lib.assertTrue(Machine.interrupt().disabled());
+		return true;
+	}
+
 	/**
 	 * If possible, raise the priority of the current thread in some
 	 * scheduler-dependent way.
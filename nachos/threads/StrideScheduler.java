@@ -0,0 +1,455 @@
+package nachos.threads;
+
+import nachos.machine.*;
+
+/**
+ * A scheduler that shares the processor in proportion to tickets, without
+ * randomness.
+ * 
+ * <p>
+ * Each thread has a <i>stride</i>, inversely proportional to its tickets, and
+ * a <i>pass</i>. The waiting thread with the smallest pass is chosen next, and
+ * a thread's pass advances by its stride for every <tt>Stats.TimerTicks</tt>
+ * ticks it runs. Ties go to the thread that has been waiting longest, so the
+ * schedule is the same from run to run.
+ * 
+ * <p>
+ * The pass of the last thread dispatched is the scheduler's virtual time. A
+ * thread that leaves the ready queue, to sleep or block or join, remembers
+ * how far its pass was ahead of the virtual time, and takes up the same
+ * position relative to the virtual time when it is woken. A thread therefore
+ * neither builds up credit while asleep nor loses its place by sleeping. New
+ * threads start at the virtual time.
+ * 
+ * <p>
+ * Tickets are set with <tt>setPriority()</tt>, from 1 to
+ * <tt>priorityMaximum</tt>. They are not transferred through locks or joins.
+ */
+public class StrideScheduler extends Scheduler {
+	/**
+	 * Allocate a new stride scheduler.
+	 */
+	public StrideScheduler() {
+	}
+
+	/**
+	 * Allocate a new stride thread queue.
+	 * 
+	 * @param transferPriority ignored. This scheduler does not transfer
+	 * tickets.
+	 * @return a new stride thread queue.
+	 */
+	public ThreadQueue newThreadQueue(boolean transferPriority) {
+		return new StrideQueue();
+	}
+
+	/**
+	 * Allocate the ready queue. Only the ready queue charges threads for the
+	 * time they run and moves the virtual time.
+	 * 
+	 * @return the new ready queue.
+	 */
+	public ThreadQueue newReadyQueue() {
+		StrideQueue queue = new StrideQueue();
+		queue.readyQueue = true;
+
+		return queue;
+	}
+
+	public int getPriority(KThread thread) {
+		Lib.assertTrue(Machine.interrupt().disabled());
+
+		return getThreadState(thread).tickets;
+	}
+
+	public int getEffectivePriority(KThread thread) {
+		return getPriority(thread);
+	}
+
+	public void setPriority(KThread thread, int priority) {
+		Lib.assertTrue(Machine.interrupt().disabled());
+
+		Lib.assertTrue(priority >= priorityMinimum
+				&& priority <= priorityMaximum);
+
+		getThreadState(thread).setTickets(priority);
+	}
+
+	public boolean increasePriority() {
+		boolean intStatus = Machine.interrupt().disable();
+		boolean ret = true;
+
+		KThread thread = KThread.currentThread();
+
+		int priority = getPriority(thread);
+		if (priority == priorityMaximum)
+			ret = false;
+		else
+			setPriority(thread, priority + 1);
+
+		Machine.interrupt().restore(intStatus);
+		return ret;
+	}
+
+	public boolean decreasePriority() {
+		boolean intStatus = Machine.interrupt().disable();
+		boolean ret = true;
+
+		KThread thread = KThread.currentThread();
+
+		int priority = getPriority(thread);
+		if (priority == priorityMinimum)
+			ret = false;
+		else
+			setPriority(thread, priority - 1);
+
+		Machine.interrupt().restore(intStatus);
+		return ret;
+	}
+
+	/**
+	 * The default number of tickets for a new thread.
+	 */
+	public static final int priorityDefault = 1;
+
+	/**
+	 * The minimum number of tickets that a thread can have.
+	 */
+	public static final int priorityMinimum = 1;
+
+	/**
+	 * The maximum number of tickets that a thread can have.
+	 */
+	public static final int priorityMaximum = 1 << 20;
+
+	/**
+	 * The stride of a thread with one ticket. Every thread's stride is this
+	 * divided by its tickets.
+	 */
+	private static final long stride1 = 1L << 20;
+
+	/**
+	 * Return the scheduling state of the specified thread.
+	 * 
+	 * @param thread the thread whose scheduling state to return.
+	 * @return the scheduling state of the specified thread.
+	 */
+	protected ThreadState getThreadState(KThread thread) {
+		if (thread.schedulingState == null)
+			thread.schedulingState = new ThreadState(thread);
+
+		return (ThreadState) thread.schedulingState;
+	}
+
+	/**
+	 * A <tt>ThreadQueue</tt> that keeps its waiting threads in a binary heap
+	 * ordered by pass. Each thread's state records its index in the heap, so
+	 * a waiting thread whose tickets change is moved in logarithmic time.
+	 */
+	private class StrideQueue extends ThreadQueue {
+		/**
+		 * Add a thread to the heap. The current thread is yielding or
+		 * blocking, and is charged for the time it has run. Any other thread
+		 * is being woken, and takes up its place relative to the virtual
+		 * time.
+		 */
+		public void waitForAccess(KThread thread) {
+			Lib.assertTrue(Machine.interrupt().disabled());
+
+			ThreadState state = getThreadState(thread);
+			Lib.assertTrue(state.waitQueue == null);
+
+			if (thread == KThread.currentThread())
+				state.charge();
+			else
+				state.pass = virtualTime + state.lag;
+
+			state.waitQueue = this;
+			state.waitTime = numWaits++;
+
+			if (size == heap.length) {
+				ThreadState[] larger = new ThreadState[size * 2];
+				System.arraycopy(heap, 0, larger, 0, size);
+				heap = larger;
+			}
+
+			heap[size] = state;
+			state.heapIndex = size++;
+			siftUp(state.heapIndex);
+		}
+
+		/**
+		 * Remove the thread with the smallest pass. On the ready queue, the
+		 * chosen thread runs next, so the thread giving up the processor is
+		 * charged first, and the virtual time moves up to the chosen
+		 * thread's pass.
+		 * 
+		 * @return the chosen thread, or <tt>null</tt> if the queue is empty.
+		 */
+		public KThread nextThread() {
+			Lib.assertTrue(Machine.interrupt().disabled());
+
+			if (readyQueue) {
+				ThreadState current = getThreadState(KThread.currentThread());
+				if (current.waitQueue == null)
+					current.charge();
+			}
+
+			if (size == 0)
+				return null;
+
+			ThreadState state = heap[0];
+			remove(state);
+
+			if (readyQueue) {
+				virtualTime = Math.max(virtualTime, state.pass);
+				state.dispatchTime = Machine.timer().getTime();
+			}
+
+			return state.thread;
+		}
+
+		/**
+		 * Cancel the thread on the queue by removing it.
+		 * 
+		 * @return <tt>true</tt> if thread was in the queue and has been
+		 * removed, or <tt>false</tt> otherwise.
+		 */
+		public boolean cancelThread(KThread thread) {
+			Lib.assertTrue(Machine.interrupt().disabled());
+
+			ThreadState state = getThreadState(thread);
+			if (state.waitQueue != this)
+				return false;
+
+			remove(state);
+			return true;
+		}
+
+		/**
+		 * The specified thread has received exclusive access, without using
+		 * <tt>waitForAccess()</tt> or <tt>nextThread()</tt>. Assert that no
+		 * threads are waiting for access.
+		 */
+		public void acquire(KThread thread) {
+			Lib.assertTrue(Machine.interrupt().disabled());
+
+			Lib.assertTrue(size == 0);
+		}
+
+		/**
+		 * Print out the waiting threads with their pass values.
+		 */
+		public void print() {
+			Lib.assertTrue(Machine.interrupt().disabled());
+
+			for (int i = 0; i < size; i++)
+				System.out.print(heap[i].thread + " (" + heap[i].pass + ") ");
+			System.out.println();
+		}
+
+		void remove(ThreadState state) {
+			int index = state.heapIndex;
+			ThreadState last = heap[--size];
+			heap[size] = null;
+
+			if (last != state) {
+				heap[index] = last;
+				last.heapIndex = index;
+				update(last);
+			}
+
+			state.waitQueue = null;
+			state.heapIndex = -1;
+		}
+
+		/**
+		 * Move a waiting thread whose pass has changed to its new place.
+		 */
+		void update(ThreadState state) {
+			siftUp(state.heapIndex);
+			siftDown(state.heapIndex);
+		}
+
+		private boolean before(ThreadState a, ThreadState b) {
+			if (a.pass != b.pass)
+				return a.pass < b.pass;
+
+			return a.waitTime < b.waitTime;
+		}
+
+		private void siftUp(int index) {
+			ThreadState state = heap[index];
+
+			while (index > 0) {
+				int parent = (index - 1) / 2;
+				if (!before(state, heap[parent]))
+					break;
+
+				heap[index] = heap[parent];
+				heap[index].heapIndex = index;
+				index = parent;
+			}
+
+			heap[index] = state;
+			state.heapIndex = index;
+		}
+
+		private void siftDown(int index) {
+			ThreadState state = heap[index];
+
+			while (true) {
+				int child = 2 * index + 1;
+				if (child >= size)
+					break;
+				if (child + 1 < size && before(heap[child + 1], heap[child]))
+					child++;
+				if (!before(heap[child], state))
+					break;
+
+				heap[index] = heap[child];
+				heap[index].heapIndex = index;
+				index = child;
+			}
+
+			heap[index] = state;
+			state.heapIndex = index;
+		}
+
+		/** <tt>true</tt> if this is the ready queue. */
+		boolean readyQueue = false;
+
+		private ThreadState[] heap = new ThreadState[4];
+
+		private int size = 0;
+	}
+
+	/**
+	 * The scheduling state of a thread: its tickets, stride and pass.
+	 */
+	protected class ThreadState {
+		ThreadState(KThread thread) {
+			this.thread = thread;
+		}
+
+		/**
+		 * Change the tickets of the associated thread. The distance of its
+		 * pass from the virtual time is scaled by the change in stride, so
+		 * that a thread given more tickets gets to run sooner.
+		 */
+		void setTickets(int tickets) {
+			long newStride = stride1 / tickets;
+
+			if (waitQueue != null) {
+				pass = virtualTime + scale(pass - virtualTime, newStride);
+				waitQueue.update(this);
+			}
+			lag = scale(lag, newStride);
+
+			this.tickets = tickets;
+			stride = newStride;
+		}
+
+		private long scale(long distance, long newStride) {
+			return (distance > 0) ? distance * newStride / stride : distance;
+		}
+
+		/**
+		 * Advance the pass of the associated thread by the time it has run
+		 * since it was dispatched or last charged, and remember where that
+		 * leaves it relative to the virtual time.
+		 */
+		void charge() {
+			long now = Machine.timer().getTime();
+
+			pass += stride * (now - dispatchTime) / Stats.TimerTicks;
+			dispatchTime = now;
+			lag = pass - virtualTime;
+		}
+
+		/** The thread with which this object is associated. */
+		KThread thread;
+
+		int tickets = priorityDefault;
+
+		long stride = stride1 / priorityDefault;
+
+		long pass = virtualTime;
+
+		/** How far <tt>pass</tt> was ahead of the virtual time when charged. */
+		long lag = 0;
+
+		/** The time the associated thread was last dispatched or charged. */
+		long dispatchTime = Machine.timer().getTime();
+
+		/** The queue the associated thread is waiting on, if any. */
+		StrideQueue waitQueue = null;
+
+		int heapIndex = -1;
+
+		/** When the associated thread started waiting on <tt>waitQueue</tt>. */
+		long waitTime;
+	}
+
+	/**
+	 * Tests that threads share the processor in proportion to their tickets,
+	 * and that a thread that sleeps for a long time does not take over the
+	 * processor when it wakes. Must be run with this scheduler selected.
+	 */
+	public static void selfTest() {
+		Lib.assertTrue(ThreadedKernel.scheduler instanceof StrideScheduler);
+		final StrideScheduler scheduler = (StrideScheduler) ThreadedKernel.scheduler;
+
+		final int[] tickets = { 1, 2, 3, 1 };
+		final long[] counts = new long[tickets.length];
+		final boolean[] done = new boolean[1];
+		KThread[] threads = new KThread[tickets.length];
+
+		for (int i = 0; i < threads.length; i++) {
+			final int id = i;
+			threads[i] = new KThread(new Runnable() {
+				public void run() {
+					// the last thread sleeps while the others build up pass
+					if (id == tickets.length - 1) {
+						ThreadedKernel.alarm.waitUntil(20 * Stats.TimerTicks);
+						for (int j = 0; j < counts.length; j++)
+							counts[j] = 0;
+					}
+
+					while (!done[0]) {
+						counts[id]++;
+						KThread.yield();
+					}
+				}
+			}).setName("stride " + i);
+
+			boolean intStatus = Machine.interrupt().disable();
+			scheduler.setPriority(threads[i], tickets[i]);
+			Machine.interrupt().restore(intStatus);
+		}
+
+		for (int i = 0; i < threads.length; i++)
+			threads[i].fork();
+
+		ThreadedKernel.alarm.waitUntil(200 * Stats.TimerTicks);
+		done[0] = true;
+		for (int i = 0; i < threads.length; i++)
+			threads[i].join();
+
+		// counted since the sleeper woke, so every share should match
+		long total = 0;
+		for (int i = 0; i < counts.length; i++)
+			total += counts[i];
+		for (int i = 0; i < counts.length; i++) {
+			double expected = total * tickets[i] / 7.0;
+			Lib.assertTrue(Math.abs(counts[i] - expected) < expected / 10,
+					"stride scheduler not proportional to tickets");
+		}
+	}
+
+	/** The pass of the last thread dispatched. */
+	private long virtualTime = 0;
+
+	/** The number of times a thread has started waiting on a queue. */
+	private long numWaits = 0;
+}
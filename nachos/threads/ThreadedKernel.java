@@ -92,7 +92,7 @@ public class ThreadedKernel extends Kernel {
 
 	private static Condition2 dummy4 = null;
 
-        //private static Communicator dummy5 = null;
+	private static Communicator dummy5 = null;
 
 	private static Rider dummy6 = null;
 
@@ -0,0 +1,215 @@
+package nachos.userprog;
+
+import nachos.machine.*;
+import nachos.threads.*;
+
+/**
+ * A kernel that times the processor on a small hand-assembled program. The
+ * program is written straight into physical memory and run under an identity
+ * page table; no COFF file or cross-compiler is needed. When the program
+ * makes its final system call, the kernel prints the program's result
+ * registers, the simulated ticks and the host time taken, then halts.
+ *
+ * <p>
+ * The <tt>BenchmarkKernel.program</tt> configuration key selects the
+ * program:
+ *
+ * <ul>
+ * <li><tt>fetch</tt> runs <i>n</i> iterations of a register-only loop, so
+ * nearly all memory traffic is instruction fetch.
+ * <li><tt>mem</tt> runs <i>n</i> passes of word, halfword and byte loads and
+ * stores over 256-element arrays.
+ * <li><tt>syscall</tt> makes <i>n</i> system calls, each of which the
+ * kernel returns from immediately, so nearly all host time goes to entering
+ * and leaving the exception handler.
+ * </ul>
+ *
+ * <p>
+ * <tt>BenchmarkKernel.iterations</tt> sets <i>n</i>. Compare the host time
+ * across Nachos builds; the results and tick counts should not change.
+ */
+public class BenchmarkKernel extends ThreadedKernel {
+	/**
+	 * Allocate a new benchmark kernel.
+	 */
+	public BenchmarkKernel() {
+		super();
+	}
+
+	/**
+	 * The benchmark has no self test.
+	 */
+	public void selfTest() {
+	}
+
+	/**
+	 * Assemble the selected program, then run it until it makes its final
+	 * system call.
+	 */
+	public void run() {
+		final String program = Config.getString("BenchmarkKernel.program",
+				"fetch");
+		if (program.equals("fetch"))
+			assembleFetch(Config.getInteger("BenchmarkKernel.iterations",
+					20000000));
+		else if (program.equals("mem"))
+			assembleMem(Config.getInteger("BenchmarkKernel.iterations", 8000));
+		else if (program.equals("syscall"))
+			assembleSyscall(Config.getInteger("BenchmarkKernel.iterations",
+					2000000));
+		else
+			Lib.assertNotReached("unknown BenchmarkKernel.program: " + program);
+
+		emit(rtype(0, 0, 0, 0, funcSyscall));
+
+		final Processor processor = Machine.processor();
+
+		byte[] code = new byte[length * 4];
+		for (int i = 0; i < length; i++)
+			Lib.bytesFromInt(code, i * 4, words[i]);
+		processor.writePhysMemory(0, code, 0, code.length);
+
+		TranslationEntry[] pageTable = new TranslationEntry[8];
+		for (int i = 0; i < pageTable.length; i++)
+			pageTable[i] = new TranslationEntry(i, i, true, false, false,
+					false);
+		processor.setPageTable(pageTable);
+
+		processor.setExceptionHandler(new Runnable() {
+			public void run() {
+				if (--syscallsLeft > 0) {
+					processor.advancePC();
+					return;
+				}
+
+				report(program, processor);
+				Machine.halt();
+			}
+		});
+
+		processor.writeRegister(Processor.regPC, 0);
+		startTime = System.nanoTime();
+		processor.run();
+	}
+
+	private void report(String program, Processor processor) {
+		System.out.println("benchmark " + program + ": result "
+				+ processor.readRegister(9) + " " + processor.readRegister(21)
+				+ ", ticks " + Machine.timer().getTime() + ", host ms "
+				+ (System.nanoTime() - startTime) / 1000000);
+	}
+
+	/**
+	 * <tt>x = (x &lt;&lt; 1) + (x &gt;&gt; 3) + i</tt> for <tt>i</tt> from 0 to
+	 * <i>n</i>, with <tt>x</tt> in <tt>$9</tt>.
+	 */
+	private void assembleFetch(int n) {
+		loadImmediate(8, 0);
+		loadImmediate(9, 1);
+		loadImmediate(10, n);
+
+		int loop = length;
+		emit(rtype(0, 9, 11, 1, funcSll));
+		emit(rtype(0, 9, 12, 3, funcSra));
+		emit(rtype(11, 12, 11, 0, funcAddu));
+		emit(rtype(11, 8, 9, 0, funcAddu));
+		emit(itype(opAddiu, 8, 8, 1));
+		emit(itype(opBne, 8, 10, loop - (length + 1)));
+		emit(nop);
+	}
+
+	/**
+	 * For each of <i>n</i> passes and each <tt>j</tt> below 256,
+	 * <tt>words[j] += j; halves[j] += words[j]; bytes[j] ^= halves[j]</tt>,
+	 * summing all three into <tt>$21</tt>. The arrays are at 0x1000, 0x1400
+	 * and 0x1600.
+	 */
+	private void assembleMem(int n) {
+		loadImmediate(8, 0);
+		loadImmediate(10, n);
+		loadImmediate(22, 256);
+		loadImmediate(21, 0);
+
+		int outer = length;
+		loadImmediate(14, 0);
+		loadImmediate(15, 0x1000);
+		loadImmediate(16, 0x1400);
+		loadImmediate(17, 0x1600);
+
+		int inner = length;
+		emit(itype(opLw, 15, 18, 0));
+		emit(nop);
+		emit(rtype(18, 14, 18, 0, funcAddu));
+		emit(itype(opSw, 15, 18, 0));
+		emit(itype(opLh, 16, 19, 0));
+		emit(nop);
+		emit(rtype(19, 18, 19, 0, funcAddu));
+		emit(itype(opSh, 16, 19, 0));
+		emit(itype(opLb, 17, 20, 0));
+		emit(nop);
+		emit(rtype(20, 19, 20, 0, funcXor));
+		emit(itype(opSb, 17, 20, 0));
+		emit(itype(opLh, 16, 19, 0));
+		emit(itype(opLb, 17, 20, 0));
+		emit(rtype(21, 18, 21, 0, funcAddu));
+		emit(rtype(21, 19, 21, 0, funcAddu));
+		emit(rtype(21, 20, 21, 0, funcAddu));
+		emit(itype(opAddiu, 14, 14, 1));
+		emit(itype(opAddiu, 15, 15, 4));
+		emit(itype(opAddiu, 16, 16, 2));
+		emit(itype(opAddiu, 17, 17, 1));
+		emit(itype(opBne, 14, 22, inner - (length + 1)));
+		emit(nop);
+
+		emit(itype(opAddiu, 8, 8, 1));
+		emit(itype(opBne, 8, 10, outer - (length + 1)));
+		emit(nop);
+	}
+
+	/**
+	 * A system call followed by a jump back to it. The exception handler
+	 * returns from the first <i>n</i> - 1 calls.
+	 */
+	private void assembleSyscall(int n) {
+		syscallsLeft = n;
+
+		int loop = length;
+		emit(rtype(0, 0, 0, 0, funcSyscall));
+		emit((opJ << 26) | loop);
+		emit(nop);
+	}
+
+	private void loadImmediate(int reg, int value) {
+		emit(itype(opLui, 0, reg, value >>> 16));
+		emit(itype(opOri, reg, reg, value & 0xFFFF));
+	}
+
+	private void emit(int word) {
+		words[length++] = word;
+	}
+
+	private static int rtype(int rs, int rt, int rd, int sh, int func) {
+		return (rs << 21) | (rt << 16) | (rd << 11) | (sh << 6) | func;
+	}
+
+	private static int itype(int op, int rs, int rt, int imm) {
+		return (op << 26) | (rs << 21) | (rt << 16) | (imm & 0xFFFF);
+	}
+
+	private int[] words = new int[128];
+
+	private int length = 0;
+
+	private long startTime;
+
+	private int syscallsLeft = 1;
+
+	private static final int nop = 0;
+
+	private static final int funcSll = 0, funcSra = 3, funcSyscall = 12,
+			funcAddu = 33, funcXor = 38;
+
+	private static final int opJ = 2, opBne = 5, opAddiu = 9, opOri = 13,
+			opLui = 15, opLb = 32, opLh = 33, opLw = 35, opSb = 40, opSh = 41,
+			opSw = 43;
+}
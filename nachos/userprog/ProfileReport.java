@@ -0,0 +1,156 @@
+package nachos.userprog;
+
+import nachos.machine.*;
+
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+
+/**
+ * Writes the execution profile of an exiting process, using the counters kept
+ * by the processor's <tt>Profiler</tt>.
+ *
+ * <p>
+ * Two files are written to the current directory. <tt><i>base</i>.profile</tt>
+ * lists the process's hottest basic blocks, resolved to COFF section names,
+ * and its per-page load and store counts. <tt><i>base</i>.folded</tt> has one
+ * line per basic block in the folded-stack format read by flame graph tools
+ * (<tt>program;section;block count</tt>). The executables are stripped, so
+ * blocks are named by their virtual address rather than by function.
+ */
+class ProfileReport {
+	/**
+	 * Write the profile of the specified process. Must be called before the
+	 * process frees its pages, which clears their counters.
+	 *
+	 * @param process the exiting process.
+	 * @param base the file name to write, without an extension.
+	 */
+	static void write(UserProcess process, String base) {
+		Profiler profiler = Machine.processor().getProfiler();
+		Lib.assertTrue(profiler != null);
+
+		String program = process.programName != null ? process.programName
+				: "process";
+
+		ArrayList<Block> blocks = new ArrayList<Block>();
+		long total = 0;
+
+		// attribute each instruction to the closest preceding block leader on
+		// the same page
+		for (int vpn = 0; vpn < process.pageTable.length; vpn++) {
+			TranslationEntry entry = process.pageTable[vpn];
+			if (!entry.valid)
+				continue;
+
+			Block block = null;
+			for (int offset = 0; offset < Processor.pageSize; offset += 4) {
+				int paddr = Processor.makeAddress(entry.ppn, offset);
+				long count = profiler.getInstructionCount(paddr);
+				long entries = profiler.getBlockEntryCount(paddr);
+
+				if (entries > 0 || (block == null && count > 0)) {
+					block = new Block(Processor.makeAddress(vpn, offset),
+							sectionName(process, vpn), entries);
+					blocks.add(block);
+				}
+				if (block != null)
+					block.instructions += count;
+				total += count;
+			}
+		}
+
+		Collections.sort(blocks, new Comparator<Block>() {
+			public int compare(Block a, Block b) {
+				return Long.compare(b.instructions, a.instructions);
+			}
+		});
+
+		try (PrintWriter out = new PrintWriter(new FileWriter(base
+				+ ".profile"))) {
+			out.println("Profile of " + program + ": " + total
+					+ " instructions");
+			out.println();
+			out.println("Hot blocks:");
+			out.println("  address     section   entries  instructions  share");
+			for (int i = 0; i < Math.min(blocks.size(), maxBlocks); i++) {
+				Block block = blocks.get(i);
+				out.println(String.format("  0x%08x  %-8s %8d  %12d  %5.1f%%",
+						block.vaddr, block.section, block.entries,
+						block.instructions, total == 0 ? 0.0
+								: 100.0 * block.instructions / total));
+			}
+
+			out.println();
+			out.println("Page accesses:");
+			out.println("  vpn   section      loads     stores");
+			for (int vpn = 0; vpn < process.pageTable.length; vpn++) {
+				TranslationEntry entry = process.pageTable[vpn];
+				if (!entry.valid)
+					continue;
+
+				long loads = profiler.getLoadCount(entry.ppn);
+				long stores = profiler.getStoreCount(entry.ppn);
+				if (loads + stores > 0)
+					out.println(String.format("  %-5d %-8s %10d %10d", vpn,
+							sectionName(process, vpn), loads, stores));
+			}
+		}
+		catch (IOException e) {
+			System.out.println("could not write profile " + base + ": " + e);
+		}
+
+		try (PrintWriter out = new PrintWriter(new FileWriter(base
+				+ ".folded"))) {
+			for (Block block : blocks) {
+				if (block.instructions > 0)
+					out.println(program + ";" + block.section + ";"
+							+ String.format("0x%08x", block.vaddr) + " "
+							+ block.instructions);
+			}
+		}
+		catch (IOException e) {
+			System.out.println("could not write profile " + base + ": " + e);
+		}
+	}
+
+	private static String sectionName(UserProcess process, int vpn) {
+		if (process.coff != null) {
+			for (int s = 0; s < process.coff.getNumSections(); s++) {
+				CoffSection section = process.coff.getSection(s);
+				if (vpn >= section.getFirstVPN()
+						&& vpn < section.getFirstVPN() + section.getLength())
+					return section.getName();
+			}
+		}
+
+		if (vpn == process.numPages - 1)
+			return "args";
+		else if (vpn >= process.numPages - 1 - process.stackPages)
+			return "stack";
+		else
+			return "?";
+	}
+
+	private static class Block {
+		Block(int vaddr, String section, long entries) {
+			this.vaddr = vaddr;
+			this.section = section;
+			this.entries = entries;
+		}
+
+		int vaddr;
+
+		String section;
+
+		long entries;
+
+		long instructions = 0;
+	}
+
+	/** The number of blocks listed in the report. */
+	private static final int maxBlocks = 20;
+}
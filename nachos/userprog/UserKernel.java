@@ -3,6 +3,7 @@ package nachos.userprog;
 import nachos.machine.*;
 import nachos.threads.*;
 import nachos.userprog.*;
+import java.io.File;
 import java.util.LinkedList;
 
 /**
@@ -51,9 +52,53 @@ public class UserKernel extends ThreadedKernel {
     }
 
     public static synchronized void freePage(int pageNumber) {
+        clearProfile(pageNumber);
         freePages.add(pageNumber);
     }
 
+	/**
+	 * Reset the profiler's counters for a physical page that is leaving its
+	 * owner, so they are not charged to the next process to use the page.
+	 * Does nothing unless profiling is enabled.
+	 * 
+	 * @param ppn the physical page number.
+	 */
+	public static void clearProfile(int ppn) {
+		Profiler profiler = Machine.processor().getProfiler();
+		if (profiler != null)
+			profiler.clearPage(ppn);
+	}
+
+	/**
+	 * Return the physical pages that are not allocated to any process, in
+	 * the order they will be handed out.
+	 * 
+	 * @return the free pages.
+	 */
+	public int[] getFreePageList() {
+		synchronized (UserKernel.class) {
+			int[] pages = new int[freePages.size()];
+			int i = 0;
+			for (int ppn : freePages)
+				pages[i++] = ppn;
+			return pages;
+		}
+	}
+
+	/**
+	 * Replace the list of free physical pages, as when restoring a
+	 * <tt>Snapshot</tt>.
+	 * 
+	 * @param pages the free pages, in the order they should be handed out.
+	 */
+	public void setFreePageList(int[] pages) {
+		synchronized (UserKernel.class) {
+			freePages.clear();
+			for (int ppn : pages)
+				freePages.add(ppn);
+		}
+	}
+
 	/**
 	 * Test the console device.
 	 */
@@ -124,13 +169,25 @@ public class UserKernel extends ThreadedKernel {
 
 		UserProcess process = UserProcess.newUserProcess();
 
+		// resume from a snapshot instead of loading the program
+		File restoreFile = Machine.getRestoreFile();
+		if (restoreFile != null) {
+			Snapshot snapshot = Snapshot.restore(restoreFile);
+			setFreePageList(snapshot.freePages);
+			Lib.assertTrue(process.execute(snapshot),
+					"could not resume " + snapshot.programName);
+
+			KThread.finish();
+		}
+
+		File snapshotFile = Machine.getSnapshotFile();
 		String shellProgram = Machine.getShellProgramName();
-		if (!process.execute(shellProgram, new String[] {})) {
+		if (!process.execute(shellProgram, new String[] {}, snapshotFile)) {
 		    System.out.println ("Could not find executable '" +
 					shellProgram + "', trying '" +
 					shellProgram + ".coff' instead.");
 		    shellProgram += ".coff";
-		    if (!process.execute(shellProgram, new String[] {})) {
+		    if (!process.execute(shellProgram, new String[] {}, snapshotFile)) {
 			System.out.println ("Also could not find '" +
 					    shellProgram + "', aborting.");
 			Lib.assertTrue(false);
@@ -138,7 +195,7 @@ public class UserKernel extends ThreadedKernel {
 
 		}
 
-		KThread.currentThread().finish();
+		KThread.finish();
 	}
 
 	/**
@@ -6,6 +6,7 @@ import nachos.userprog.*;
 import nachos.vm.*;
 
 import java.io.EOFException;
+import java.io.File;
 import java.util.HashMap;
 
 /**
@@ -93,15 +94,77 @@ public class UserProcess {
 	 * @return <tt>true</tt> if the program was successfully executed.
 	 */
 	public boolean execute(String name, String[] args) {
+		return execute(name, args, null);
+	}
+
+	/**
+	 * Execute the specified program with the specified arguments, first saving
+	 * a <tt>Snapshot</tt> of the machine with the program loaded. A later run
+	 * can skip loading the program by passing the snapshot to
+	 * <tt>execute(Snapshot)</tt>.
+	 * 
+	 * @param name the name of the file containing the executable.
+	 * @param args the arguments to pass to the executable.
+	 * @param snapshotFile the file to save the snapshot to, or <tt>null</tt>
+	 * to not save one.
+	 * @return <tt>true</tt> if the program was successfully executed.
+	 */
+	public boolean execute(String name, String[] args, File snapshotFile) {
 		if (!load(name, args))
 			return false;
 
+		programName = name;
+		if (snapshotFile != null)
+			saveSnapshot(snapshotFile);
+
 		thread = new UThread(this);
 		thread.setName(name).fork();
 
 		return true;
 	}
 
+	/**
+	 * Resume a program from a snapshot saved by
+	 * <tt>execute(String, String[], File)</tt>. The machine state must already
+	 * have been restored by <tt>Snapshot.restore()</tt>.
+	 * 
+	 * @param snapshot the restored snapshot.
+	 * @return <tt>true</tt> if the program was successfully resumed.
+	 */
+	public boolean execute(Snapshot snapshot) {
+		pageTable = snapshot.pageTable;
+		numPages = pageTable.length;
+
+		initialPC = snapshot.registers[Processor.regPC];
+		initialSP = snapshot.registers[Processor.regSP];
+		argc = snapshot.registers[Processor.regA0];
+		argv = snapshot.registers[Processor.regA1];
+
+		programName = snapshot.programName;
+		if (!restoreSections())
+			return false;
+
+		thread = new UThread(this);
+		thread.setName(programName).fork();
+
+		return true;
+	}
+
+	private void saveSnapshot(File file) {
+		Snapshot snapshot = new Snapshot();
+
+		snapshot.pageTable = pageTable;
+		snapshot.freePages = ((UserKernel) Kernel.kernel).getFreePageList();
+		snapshot.programName = programName;
+
+		snapshot.registers[Processor.regPC] = initialPC;
+		snapshot.registers[Processor.regSP] = initialSP;
+		snapshot.registers[Processor.regA0] = argc;
+		snapshot.registers[Processor.regA1] = argv;
+
+		snapshot.save(file);
+	}
+
 	/**
 	 * Save the state of this process in preparation for a context switch.
 	 * Called by <tt>UThread.saveState()</tt>.
@@ -176,7 +239,7 @@ public class UserProcess {
 		Lib.assertTrue(offset >= 0 && length >= 0
 				&& offset + length <= data.length);
 
-		byte[] memory = Machine.processor().getMemory();
+		Processor processor = Machine.processor();
 		int amountRead = 0;
 
 		// for now, just assume that virtual addresses equal physical addresses
@@ -193,12 +256,12 @@ public class UserProcess {
 
 			int ppn = pageTable[vpn].ppn;
 			int paddr = Processor.makeAddress(ppn, Processor.offsetFromAddress(vaddr));
-			if (paddr < 0 || paddr >= memory.length) {
+			if (paddr < 0 || paddr >= processor.getMemorySize()) {
 				break; // Physical address out of bounds.
 			}
 
 			int amount = Math.min(length, Processor.pageSize - Processor.offsetFromAddress(vaddr));
-			System.arraycopy(memory, paddr, data, offset, amount);
+			processor.readPhysMemory(paddr, data, offset, amount);
 
 			vaddr += amount;
 			offset += amount;
@@ -240,14 +303,14 @@ public class UserProcess {
 		Lib.assertTrue(offset >= 0 && length >= 0
 				&& offset + length <= data.length);
 
-		byte[] memory = Machine.processor().getMemory();
+		Processor processor = Machine.processor();
 
 		// for now, just assume that virtual addresses equal physical addresses
-		if (vaddr < 0 || vaddr >= memory.length)
+		if (vaddr < 0 || vaddr >= processor.getMemorySize())
 			return 0;
 
-		int amount = Math.min(length, memory.length - vaddr);
-		System.arraycopy(data, offset, memory, vaddr, amount);
+		int amount = Math.min(length, processor.getMemorySize() - vaddr);
+		processor.writePhysMemory(vaddr, data, offset, amount);
 
 		return amount;
 	}
@@ -411,6 +474,18 @@ public class UserProcess {
 		return true;
 	}
 
+	/**
+	 * Prepare a process resumed from a snapshot to run. The page table and
+	 * physical memory have already been restored, so by default there is
+	 * nothing left to do; the process's executable is not reopened, and
+	 * <tt>coff</tt> stays <tt>null</tt>.
+	 * 
+	 * @return <tt>true</tt> if the process is ready to run.
+	 */
+	protected boolean restoreSections() {
+		return true;
+	}
+
 	/**
 	 * Release any resources allocated by <tt>loadSections()</tt>.
 	 */
@@ -481,8 +556,12 @@ public class UserProcess {
 			}
 		}
 		exitStatus = status;
+		if (Machine.processor().getProfiler() != null)
+			ProfileReport.write(this, programName + "." + pid);
+
 		unloadSections();
-		coff.close();
+		if (coff != null)
+			coff.close();
 		System.out.println("removing process");
 		UserKernel.num_processes--;
 		System.out.println("num_process is");
@@ -629,12 +708,12 @@ public class UserProcess {
 		if (fd < 0 || fd >= fdSize || count < 0)
 			return -1;
 
-		byte[] memory = Machine.processor().getMemory();
+		int memorySize = Machine.processor().getMemorySize();
 		OpenFile fileName = fdTable[fd];
 		if (fileName == null)
 			return -1;
 
-		if (vaBuffer < 0 || vaBuffer >= memory.length || (vaBuffer + count) > memory.length) {
+		if (vaBuffer < 0 || vaBuffer >= memorySize || (vaBuffer + count) > memorySize) {
 			return -1;
 		}
 		// loop untill all data is read
@@ -978,6 +1057,9 @@ public class UserProcess {
 	/** The thread that executes the user-level program. */
 	protected UThread thread;
 
+	/** The name of the executable this process is running. */
+	protected String programName;
+
 	private int initialPC, initialSP;
 
 	private int argc, argv;
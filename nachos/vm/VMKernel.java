@@ -26,8 +26,10 @@ public class VMKernel extends UserKernel {
     public static Integer getSwapLocation(int vpn) {
         return vpnToSwapIndexMap.get(vpn);
     }
-    public static void readFromSwapFile(int swapLocation, byte[] memory, int memoryOffset, int readSize) {
-        swapFile.read(swapLocation * readSize, memory, memoryOffset, readSize);
+    public static void readFromSwapFile(int swapLocation, int memoryOffset, int readSize) {
+        byte[] pageData = new byte[readSize];
+        swapFile.read(swapLocation * readSize, pageData, 0, readSize);
+        Machine.processor().writePhysMemory(memoryOffset, pageData, 0, readSize);
     }
 
 
@@ -82,10 +84,9 @@ public class VMKernel extends UserKernel {
             return;
         }
         acquireVMMutex();
-        byte[] memory = Machine.processor().getMemory();
         int startAddress = ppn * Machine.processor().pageSize;
         byte[] pageData = new byte[Machine.processor().pageSize];
-        System.arraycopy(memory, startAddress, pageData, 0, Machine.processor().pageSize);
+        Machine.processor().readPhysMemory(startAddress, pageData, 0, Machine.processor().pageSize);
         int vpn = entry.vpn;
         System.out.println("vpn is " + vpn);
         Integer swapPageIndex = vpnToSwapIndexMap.get(vpn);
@@ -162,10 +163,40 @@ public class VMKernel extends UserKernel {
             System.out.println("VMKernel: Attempted to free invalid page number " + pageNumber);
             return;
         }
+        clearProfile(pageNumber);
         freePages.add(pageNumber);
         System.out.println("VMKernel: Freed page " + pageNumber);
     }
 
+    /**
+     * Return the physical pages that are not allocated to any process.
+     *
+     * @return the free pages, in the order they will be handed out.
+     */
+    public int[] getFreePageList() {
+        synchronized (VMKernel.class) {
+            int[] pages = new int[freePages.size()];
+            int i = 0;
+            for (int ppn : freePages)
+                pages[i++] = ppn;
+            return pages;
+        }
+    }
+
+    /**
+     * Replace the list of free physical pages, as when restoring a
+     * <tt>Snapshot</tt>.
+     *
+     * @param pages the free pages, in the order they should be handed out.
+     */
+    public void setFreePageList(int[] pages) {
+        synchronized (VMKernel.class) {
+            freePages.clear();
+            for (int ppn : pages)
+                freePages.add(ppn);
+        }
+    }
+
     /**
      * Test this kernel.
      */
@@ -189,6 +220,123 @@ public class VMKernel extends UserKernel {
         super.terminate();
     }
 
+    /**
+     * Assign an address space identifier to a process, so that its TLB
+     * entries can stay loaded while other processes run. Identifiers released
+     * by exited processes are reused first, after flushing any TLB entries
+     * still tagged with them.
+     *
+     * @param process the process that will use the identifier.
+     * @return the process's address space identifier.
+     */
+    public static synchronized int allocateASID(VMProcess process) {
+        int asid;
+        if (!freeASIDs.isEmpty()) {
+            asid = freeASIDs.removeFirst();
+            flushASID(asid);
+        }
+        else {
+            asid = nextASID++;
+        }
+
+        processesByASID.put(asid, process);
+        return asid;
+    }
+
+    /**
+     * Release an address space identifier, removing any of its entries that
+     * are still in the TLB, so that it can be given to another process.
+     *
+     * @param asid the identifier being released.
+     */
+    public static synchronized void releaseASID(int asid) {
+        flushASID(asid);
+        if (processesByASID.containsKey(asid)) {
+            processesByASID.remove(asid);
+            freeASIDs.add(asid);
+        }
+    }
+
+    private static void flushASID(int asid) {
+        Processor processor = Machine.processor();
+        if (!processor.hasTLB())
+            return;
+
+        for (int i = 0; i < processor.getTLBSize(); i++) {
+            TranslationEntry entry = processor.readTLBEntry(i);
+            if (entry.valid && entry.asid == asid) {
+                entry.valid = false;
+                processor.writeTLBEntry(i, entry);
+            }
+        }
+    }
+
+    /**
+     * Load a translation into the TLB set for its virtual page, replacing an
+     * invalid entry if there is one and otherwise rotating through the set.
+     * The used and dirty bits of a replaced entry are saved to its owner's
+     * page table.
+     *
+     * @param entry the translation to load; its <tt>asid</tt> must be set.
+     */
+    public static synchronized void loadTLBEntry(TranslationEntry entry) {
+        Processor processor = Machine.processor();
+        int first = processor.getTLBSetIndex(entry.vpn);
+        int ways = processor.getTLBWays();
+
+        if (tlbHands == null)
+            tlbHands = new int[processor.getTLBSize() / ways];
+
+        int victim = -1;
+        for (int i = first; i < first + ways; i++) {
+            if (!processor.readTLBEntry(i).valid) {
+                victim = i;
+                break;
+            }
+        }
+        if (victim == -1) {
+            int set = first / ways;
+            victim = first + tlbHands[set];
+            tlbHands[set] = (tlbHands[set] + 1) % ways;
+            saveTLBEntry(processor.readTLBEntry(victim));
+        }
+
+        processor.writeTLBEntry(victim, entry);
+    }
+
+    /**
+     * Remove every TLB entry that maps the specified physical page, saving
+     * their used and dirty bits to the owners' page tables first. Must be
+     * called before a page is evicted.
+     *
+     * @param ppn the physical page being evicted.
+     */
+    public static synchronized void invalidateTLBPage(int ppn) {
+        Processor processor = Machine.processor();
+        if (!processor.hasTLB())
+            return;
+
+        for (int i = 0; i < processor.getTLBSize(); i++) {
+            TranslationEntry entry = processor.readTLBEntry(i);
+            if (entry.valid && entry.ppn == ppn) {
+                saveTLBEntry(entry);
+                entry.valid = false;
+                processor.writeTLBEntry(i, entry);
+            }
+        }
+    }
+
+    private static void saveTLBEntry(TranslationEntry entry) {
+        VMProcess owner = processesByASID.get(entry.asid);
+        if (entry.valid && owner != null)
+            owner.saveTLBEntry(entry);
+    }
+
+    private static int nextASID = 1;
+    private static LinkedList<Integer> freeASIDs = new LinkedList<>();
+    private static HashMap<Integer, VMProcess> processesByASID = new HashMap<>();
+    private static int[] tlbHands = null;
+
     // dummy variables to make javac smarter
     private static VMProcess dummy1 = null;
 
@@ -4,7 +4,6 @@ import nachos.machine.*;
 import nachos.threads.*;
 import nachos.userprog.*;
 import nachos.vm.*;
-import java.util.Arrays;
 /**
  * 
  * A <tt>UserProcess</tt> that supports demand-paging.
@@ -15,6 +14,7 @@ public class VMProcess extends UserProcess {
      */
     public VMProcess() {
         super();
+        asid = VMKernel.allocateASID(this);
         System.out.println("VMProcess created.");
 
     }
@@ -25,6 +25,17 @@ public class VMProcess extends UserProcess {
      */
     public void saveState() {
         super.saveState();
+
+        // entries tagged with our ASID stay in the TLB; just record what the
+        // program did with them
+        Processor processor = Machine.processor();
+        if (processor.hasTLB()) {
+            for (int i = 0; i < processor.getTLBSize(); i++) {
+                TranslationEntry entry = processor.readTLBEntry(i);
+                if (entry.valid && entry.asid == asid)
+                    saveTLBEntry(entry);
+            }
+        }
     }
 
     /**
@@ -32,7 +43,27 @@ public class VMProcess extends UserProcess {
      * <tt>UThread.restoreState()</tt>.
      */
     public void restoreState() {
-        super.restoreState();
+        if (Machine.processor().hasTLB())
+            Machine.processor().setASID(asid);
+        else
+            super.restoreState();
+    }
+
+    /**
+     * Copy the used and dirty bits of a TLB entry belonging to this process
+     * back into its page table.
+     *
+     * @param entry a TLB entry tagged with this process's ASID.
+     */
+    void saveTLBEntry(TranslationEntry entry) {
+        if (entry.vpn < 0 || entry.vpn >= pageTable.length)
+            return;
+
+        TranslationEntry pte = pageTable[entry.vpn];
+        if (pte.valid && pte.ppn == entry.ppn) {
+            pte.used |= entry.used;
+            pte.dirty |= entry.dirty;
+        }
     }
 
     /**
@@ -50,10 +81,31 @@ public class VMProcess extends UserProcess {
         return true;
     }
 
+    /**
+     * Reopen the executable of a process resumed from a snapshot, since pages
+     * that were not yet faulted in are still demand-paged from it.
+     *
+     * @return <tt>true</tt> if the executable could be reopened.
+     */
+    protected boolean restoreSections() {
+        OpenFile executable = ThreadedKernel.fileSystem.open(programName, false);
+        if (executable == null)
+            return false;
+
+        try {
+            coff = new Coff(executable);
+        } catch (java.io.EOFException e) {
+            executable.close();
+            return false;
+        }
+        return true;
+    }
+
     /**
      * Release any resources allocated by <tt>loadSections()</tt>.
      */
     protected void unloadSections() {
+        VMKernel.releaseASID(asid);
         super.unloadSections();
     }
 
@@ -71,6 +123,10 @@ public class VMProcess extends UserProcess {
             case Processor.exceptionPageFault:
                 handlePageFault(processor.readRegister(Processor.regBadVAddr)); // need to return anything??????????
                 break;
+            case Processor.exceptionTLBMiss:
+                if (!handleTLBMiss(processor.readRegister(Processor.regBadVAddr)))
+                    super.handleException(cause);
+                break;
             default:
                 super.handleException(cause);
                 break;
@@ -78,6 +134,27 @@ public class VMProcess extends UserProcess {
     }
 
 
+    /**
+     * Load the translation for a virtual address into the TLB, faulting the
+     * page in first if necessary.
+     *
+     * @param badVaddr the address that missed in the TLB.
+     * @return <tt>false</tt> if the address is outside this address space.
+     */
+    protected boolean handleTLBMiss(int badVaddr) {
+        int vpn = Processor.pageFromAddress(badVaddr);
+        if (vpn < 0 || vpn >= pageTable.length)
+            return false;
+
+        if (!pageTable[vpn].valid && !handlePageFault(badVaddr))
+            return false;
+
+        TranslationEntry entry = new TranslationEntry(pageTable[vpn]);
+        entry.asid = asid;
+        VMKernel.loadTLBEntry(entry);
+        return true;
+    }
+
     private boolean isPageInSwap(int vpn) {
         Integer swapIndex = VMKernel.getSwapLocation(vpn);
         return swapIndex != null;
@@ -86,12 +163,11 @@ public class VMProcess extends UserProcess {
     private void loadPageFromSwap(int vpn, int ppn) {
         Integer swapLocation = VMKernel.getSwapLocation(vpn);
         if (swapLocation != null) {
-            byte[] memory = Machine.processor().getMemory();
             int readSize = Machine.processor().pageSize;
             int memoryOffset = ppn * readSize;
 
             // Use the public method in VMKernel to read from the swap file
-            VMKernel.readFromSwapFile(swapLocation, memory, memoryOffset, readSize);
+            VMKernel.readFromSwapFile(swapLocation, memoryOffset, readSize);
         }
     }
 
@@ -130,11 +206,13 @@ public class VMProcess extends UserProcess {
                 }
             }
             if (entryToEvict != null) {
+                VMKernel.invalidateTLBPage(ppn);
                 VMKernel.releaseVMMutex();
                 System.out.println("this section");
                 VMKernel.writeToSwap(ppn, entryToEvict);
                 VMKernel.acquireVMMutex();
                 entryToEvict.valid = false;
+                VMKernel.clearProfile(ppn);
             } else {
                 VMKernel.releaseVMMutex();
                 return false; // Handle error if no valid page is found for eviction
@@ -201,9 +279,8 @@ public class VMProcess extends UserProcess {
         }
         // If it's not a COFF page, zero-fill it
         if (!isCoffPage) {
-            byte[] memory = Machine.processor().getMemory();
-            Arrays.fill(memory, Processor.makeAddress(ppn, 0),
-                    Processor.makeAddress(ppn + 1, 0), (byte) 0);
+            Machine.processor().fillPhysMemory(Processor.makeAddress(ppn, 0),
+                    Processor.pageSize, (byte) 0);
         }
 
         System.out.println("VMProcess: Page data loaded for VPN " + vpn);
@@ -213,7 +290,7 @@ public class VMProcess extends UserProcess {
     public int writeVirtualMemory(int vaddr, byte[] data, int offset, int length) {
         Lib.assertTrue(offset >= 0 && length >= 0 && offset + length <= data.length);
 
-        byte[] memory = Machine.processor().getMemory();
+        Processor processor = Machine.processor();
         int amountWritten = 0;
 
         System.out.println("writeVirtualMemory called with vaddr=" + vaddr + ", offset=" + offset + ", length=" + length);
@@ -246,13 +323,13 @@ public class VMProcess extends UserProcess {
             int paddr = Processor.makeAddress(ppn, Processor.offsetFromAddress(vaddr));
             System.out.println("Physical Address: " + paddr);
 
-            if (paddr < 0 || paddr >= memory.length) {
+            if (paddr < 0 || paddr >= processor.getMemorySize()) {
                 System.out.println("Physical address out of bounds: " + paddr);
                 break;
             }
 
             int amount = Math.min(length, Processor.pageSize - Processor.offsetFromAddress(vaddr));
-            System.arraycopy(data, offset, memory, paddr, amount);
+            processor.writePhysMemory(paddr, data, offset, amount);
 
             System.out.println("Attempted to write " + amount + " bytes to physical memory.");
 
@@ -274,7 +351,7 @@ public int readVirtualMemory(int vaddr, byte[] data, int offset, int length) {
 
     System.out.println("readVirtualMemory: vaddr=" + vaddr + ", requestedLength=" + length + ", offset=" + offset);
 
-    byte[] memory = Machine.processor().getMemory();
+    Processor processor = Machine.processor();
     int amountRead = 0;
 
     while (length > 0) {
@@ -305,13 +382,13 @@ public int readVirtualMemory(int vaddr, byte[] data, int offset, int length) {
 
         if (entry.valid) {
             int paddr = Processor.makeAddress(entry.ppn, Processor.offsetFromAddress(vaddr));
-            if (paddr < 0 || paddr >= memory.length) {
+            if (paddr < 0 || paddr >= processor.getMemorySize()) {
                 System.out.println("Physical address out of bounds: " + paddr);
                 break;  // Physical address out of bounds, break out of the loop
             }
 
             int amount = Math.min(length, Processor.pageSize - Processor.offsetFromAddress(vaddr));
-            System.arraycopy(memory, paddr, data, offset, amount);
+            processor.readPhysMemory(paddr, data, offset, amount);
 
             vaddr += amount;
             offset += amount;
@@ -330,6 +407,9 @@ public int readVirtualMemory(int vaddr, byte[] data, int offset, int length) {
 
 
 
+    /** The address space identifier tagging this process's TLB entries. */
+    private int asid;
+
     private static final int pageSize = Processor.pageSize;
 
     private static final char dbgProcess = 'a';